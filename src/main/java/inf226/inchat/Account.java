@@ -1,4 +1,6 @@
 package inf226.inchat;
+import java.sql.SQLException;
+
 import inf226.util.immutable.List;
 import inf226.util.Pair;
 
@@ -13,15 +15,15 @@ public final class Account {
     /*
      * A channel consists of a User object of public account info,
      * and a list of channels which the user can post to.
-     * user.
+     * The channels are only loaded when they are used.
      */
 
     private final String password;
     public final Stored<User> user;
-    public final List<Pair<String,Stored<Channel>>> channels;
+    public final List<Pair<String,Reference<Channel,SQLException>>> channels;
     
     public Account(Stored<User> user, 
-                   List<Pair<String,Stored<Channel>>> channels, String Hashedpassword) {
+                   List<Pair<String,Reference<Channel,SQLException>>> channels, String Hashedpassword) {
         this.user = user;
         this.channels = channels;
         this.password = Hashedpassword;
@@ -47,8 +49,8 @@ public final class Account {
      * @return A new account object with the channel added.
      */
     public Account joinChannel(String alias, Stored<Channel> channel) {
-        Pair<String,Stored<Channel>> entry
-            = new Pair<>(alias, channel);
+        Pair<String,Reference<Channel,SQLException>> entry
+            = new Pair<>(alias, Reference.of(channel));
         return new Account (user, List.cons(entry, channels),getPassword());
     }
     
@@ -1,7 +1,13 @@
 package inf226.inchat;
 
-import java.sql.*;
+import java.sql.SQLException;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import inf226.storage.*;
 
@@ -17,27 +23,27 @@ public final class AccountStorage implements Storage<Account,SQLException> {
     final Storage<User,SQLException> userStore;
     final Storage<Channel,SQLException> channelStore;
 
+    /* Read cursors not written yet, by account and channel */
+    private final ConcurrentMap<UUID,ConcurrentMap<UUID,Long>> unwrittenCursors
+        = new ConcurrentHashMap<UUID,ConcurrentMap<UUID,Long>>();
+    private volatile ScheduledExecutorService cursorWriter = null;
+
     /**
      * Create a new account storage.
      *
-     * @param  connection   The connection to the SQL database.
+     * @param  connectionManager The connection manager for the SQL database.
      * @param  userStore    The storage for User data.
      * @param  channelStore The storage for channels.
      */
-    public AccountStorage(Connection connection,
+    public AccountStorage(ConnectionManager connectionManager,
                           Storage<User,SQLException> userStore,
                           Storage<Channel,SQLException> channelStore)
       throws SQLException {
-        this.connectionManager = new ConnectionManager(connection);
+        this.connectionManager = connectionManager;
         this.userStore = userStore;
         this.channelStore = channelStore;
 
-        String accountSql = "CREATE TABLE IF NOT EXISTS Account (id TEXT PRIMARY KEY , version TEXT, user TEXT, key TEXT, FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)";
-        String channelSql = "CREATE TABLE IF NOT EXISTS AccountChannel (account TEXT, channel TEXT, alias TEXT, ordinal INTEGER, PRIMARY KEY(account,channel), FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)";
-        String channel_permsql = "CREATE TABLE IF NOT EXISTS Channel_permissions (channel TEXT not null,account TEXT not null, permission TEXT not null);";
-        connectionManager.prepareAndExecuteUpdate(accountSql, null);
-        connectionManager.prepareAndExecuteUpdate(channelSql, null);
-        connectionManager.prepareAndExecuteUpdate(channel_permsql, null);
+        Schema.migrate(connectionManager);
     }
 
     @Override
@@ -46,129 +52,472 @@ public final class AccountStorage implements Storage<Account,SQLException> {
 
         final Stored<Account> stored = new Stored<>(account);
 
-        String accountQuery =  "INSERT INTO Account VALUES(?,?,?,?)";
-        String[] accountData = new String[]{stored.identity.toString(), stored.version.toString(), account.user.identity.toString(), account.getPassword()};
-        connectionManager.prepareAndExecuteUpdate(accountQuery, accountData);
-
-        // Write the list of channels
-        final Maybe.Builder<SQLException> exception = Maybe.builder();
-        final Mutable<Integer> ordinal = new Mutable<>(0);
-        account.channels.forEach(element -> {
-            String alias = element.first;
-            Stored<Channel> channel = element.second;
-            final String accountChannelQuery = "INSERT INTO AccountChannel VALUES(?,?,?,?)";
-            final String[] accountChannelData = new String[]{stored.identity.toString(), channel.identity.toString(), alias, ordinal.get().toString()};
-
-            try { connectionManager.prepareAndExecuteUpdate(accountChannelQuery, accountChannelData); }
-            catch (SQLException e) { exception.accept(e) ; }
+        return connectionManager.inTransaction(() -> {
+            String accountQuery =  "INSERT INTO Account VALUES(?,?,?,?)";
+            Object[] accountData = new Object[]{stored.identity, stored.version, account.user.identity, account.getPassword()};
+            connectionManager.prepareAndExecuteUpdate(accountQuery, accountData);
 
-            ordinal.accept(ordinal.get() + 1);
+            // Write the list of channels
+            writeChannels(stored.identity, account.channels);
+            return stored;
         });
-
-        Util.throwMaybe(exception.getMaybe());
-        return stored;
     }
 
     @Override
-    public synchronized Stored<Account> update(Stored<Account> account,
+    public Stored<Account> update(Stored<Account> account,
                                             Account new_account)
         throws UpdatedException,
             DeletedException,
             SQLException {
-    final Stored<Account> current = get(account.identity);
-    final Stored<Account> updated = current.newVersion(new_account);
-    if(current.version.equals(account.version)) {
-        String accountUpdateQuery = "UPDATE Account SET (version,user) =(?,?) WHERE id= ?";
-        String[] accountUpdateData = new String[]{updated.version.toString(), new_account.user.identity.toString(), updated.identity.toString()};
-        connectionManager.prepareAndExecuteUpdate(accountUpdateQuery, accountUpdateData);
-
-        // Rewrite the list of channels
-        String deleteChannelQuery = "DELETE FROM AccountChannel WHERE account=?";
-        String[] deleteChannelData = new String[]{account.identity.toString()};
-        connectionManager.prepareAndExecuteUpdate(deleteChannelQuery, deleteChannelData);
-
-        final Maybe.Builder<SQLException> exception = Maybe.builder();
-        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-        new_account.channels.forEach(element -> {
-            String alias = element.first;
-            Stored<Channel> channel = element.second;
+        final Maybe.Builder<UpdatedException> conflict = Maybe.builder();
+        final Stored<Account> updated = connectionManager.inTransaction(() -> {
+            String accountUpdateQuery = "UPDATE Account SET (version,user) =(version+1,?) WHERE id= ? AND version= ?";
+            Object[] accountUpdateData = new Object[]{new_account.user.identity, account.identity, account.version};
+            if(!connectionManager.prepareAndExecuteCompareAndSet(accountUpdateQuery, accountUpdateData)) {
+                // The account was updated or deleted since it was read
+                final Stored<Account> current = get(account.identity);
+                conflict.accept(new UpdatedException(current));
+                return current;
+            }
+            final Stored<Account> next = account.newVersion(new_account);
 
-            final String addChannelQuery = "INSERT INTO AccountChannel VALUES(?,?,?,?)";
-            final String[] addChannelData = new String[]{account.identity.toString(), channel.identity.toString(), alias, ordinal.get().toString()};
-            try { connectionManager.prepareAndExecuteUpdate(addChannelQuery, addChannelData); }
-            catch (SQLException e) { exception.accept(e) ; }
+            // Rewrite the list of channels
+            String deleteChannelQuery = "DELETE FROM AccountChannel WHERE account=?";
+            Object[] deleteChannelData = new Object[]{account.identity};
+            connectionManager.prepareAndExecuteUpdate(deleteChannelQuery, deleteChannelData);
 
-            ordinal.accept(ordinal.get() + 1);
+            writeChannels(account.identity, new_account.channels);
+            return next;
         });
-
-        Util.throwMaybe(exception.getMaybe());
-    } else {
-        throw new UpdatedException(current);
-    }
-    return updated;
+        Util.throwMaybe(conflict.getMaybe());
+        return updated;
     }
 
     @Override
-    public synchronized void delete(Stored<Account> account)
+    public void delete(Stored<Account> account)
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Account> current = get(account.identity);
-        if(current.version.equals(account.version)) {
-            String deleteAccountQuery = "DELETE FROM Account WHERE id =?";
-            String[] deleteAccountData = new String[]{account.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(deleteAccountQuery, deleteAccountData);
-        } else {
-            throw new UpdatedException(current);
+        String deleteAccountQuery = "DELETE FROM Account WHERE id =? AND version =?";
+        Object[] deleteAccountData = new Object[]{account.identity, account.version};
+        if(!connectionManager.prepareAndExecuteCompareAndSet(deleteAccountQuery, deleteAccountData)) {
+            throw new UpdatedException(get(account.identity));
         }
     }
-    @Override
-    public Stored<Account> get(UUID id)
+    /**
+     * Get the summaries of the channels of an account, with
+     * one query and no events.
+     * @return The aliases and summaries, in the order of Account.channels.
+     */
+    public List<Pair<String,ChannelSummary>> getChannelSummaries(UUID accountId)
+      throws SQLException {
+        final String summaryQuery = "SELECT AccountChannel.alias AS alias, ChannelSummary.*,"
+            + " coalesce(ReadCursor.seen, -1) AS seen"
+            + " FROM AccountChannel JOIN ChannelSummary ON ChannelSummary.channel = AccountChannel.channel"
+            + " LEFT JOIN ReadCursor ON ReadCursor.account = AccountChannel.account"
+            + " AND ReadCursor.channel = AccountChannel.channel"
+            + " WHERE AccountChannel.account = ? ORDER BY AccountChannel.ordinal DESC";
+        final Object[] summaryData = new Object[]{accountId};
+        final Map<UUID,Long> unwritten = unwrittenCursors.getOrDefault(accountId, new ConcurrentHashMap<UUID,Long>());
+        return connectionManager.prepareAndExecuteQuery(summaryQuery, summaryData, rs -> {
+            // The rows come last first, so the list is in order
+            final List.Builder<Pair<String,ChannelSummary>> summaries = List.builder();
+            while(rs.next()) {
+                final long seen = Math.max(rs.getLong("seen"),
+                    unwritten.getOrDefault(ConnectionManager.getUUID(rs, "channel"), -1L));
+                summaries.accept(Pair.pair(rs.getString("alias"), ChannelStorage.readSummary(rs, seen)));
+            }
+            return summaries.getList();
+        });
+    }
+
+    /**
+     * Move the read cursor of an account in a channel forward.
+     * A cursor is never moved back.
+     *
+     * If coalescing is enabled, the cursor is kept in memory and written
+     * with the other cursors at the next flush, so an account browsing
+     * channels does not write on every page. Otherwise it is written now.
+     *
+     * @param seen The sequence number of the newest event seen.
+     */
+    public void markSeen(UUID accountId, UUID channelId, long seen)
+      throws SQLException {
+        if(cursorWriter == null) {
+            writeCursors(java.util.Collections.singletonList(new Object[]{accountId, channelId, seen, channelId, accountId}));
+            return;
+        }
+        unwrittenCursors.computeIfAbsent(accountId, account -> new ConcurrentHashMap<UUID,Long>())
+            .merge(channelId, seen, Math::max);
+    }
+
+    /**
+     * Write the read cursors kept in memory, as one batch.
+     */
+    public void flushCursors()
+      throws SQLException {
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>();
+        unwrittenCursors.forEach((accountId, channels) -> channels.forEach((channelId, seen) -> {
+            // A cursor moved since it was read is left for the next flush
+            if(channels.remove(channelId, seen))
+                rows.add(new Object[]{accountId, channelId, seen, channelId, accountId});
+        }));
+        try {
+            writeCursors(rows);
+        } catch (SQLException e) {
+            // Keep the cursors for the next flush
+            for (Object[] row : rows) {
+                unwrittenCursors.computeIfAbsent((UUID)row[0], account -> new ConcurrentHashMap<UUID,Long>())
+                    .merge((UUID)row[1], (Long)row[2], Math::max);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Write read cursors, skipping those of deleted accounts and channels.
+     */
+    private void writeCursors(java.util.List<Object[]> rows)
+      throws SQLException {
+        final String cursorQuery = "INSERT INTO ReadCursor SELECT ?, ?, ? FROM Channel"
+            + " WHERE id = ? AND EXISTS (SELECT 1 FROM Account WHERE id = ?)"
+            + " ON CONFLICT(account,channel) DO UPDATE SET seen = max(seen, excluded.seen)";
+        connectionManager.prepareAndExecuteBatch(cursorQuery, rows);
+    }
+
+    /**
+     * Keep read cursors in memory, and write them every interval.
+     */
+    public synchronized void enableCursorCoalescing(long interval, TimeUnit unit) {
+        if(cursorWriter != null)
+            return;
+        final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, "inchat-read-cursors");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                flushCursors();
+            } catch (SQLException e) {
+                System.err.println("While writing read cursors:" + e);
+            }
+        }, interval, interval, unit);
+        cursorWriter = writer;
+    }
+
+    /**
+     * Stop keeping read cursors in memory, and write those kept.
+     */
+    public synchronized void disableCursorCoalescing()
+      throws SQLException {
+        final ScheduledExecutorService writer = cursorWriter;
+        if(writer == null)
+            return;
+        cursorWriter = null;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushCursors();
+    }
+
+    /**
+     * Add a channel to an account, writing only the new membership.
+     * The channel is put first in the list of channels of the account.
+     * Joining a channel twice keeps the first alias.
+     *
+     * Unlike update(), this does not need the latest version of the
+     * account, as it does not overwrite the other channels. The version
+     * of the account is still moved forward.
+     *
+     * @return The account with the channel added.
+     */
+    public Stored<Account> joinChannel(Stored<Account> account, String alias, Stored<Channel> channel)
+      throws DeletedException,
+             SQLException {
+        return connectionManager.inTransaction(() -> {
+            touch(account.identity);
+            String joinQuery = "INSERT OR IGNORE INTO AccountChannel"
+                + " SELECT ?, ?, ?, coalesce(min(ordinal) - 1, 0) FROM AccountChannel WHERE account = ?";
+            Object[] joinData = new Object[]{account.identity, channel.identity, alias, account.identity};
+            connectionManager.prepareAndExecuteUpdate(joinQuery, joinData);
+            return get(account.identity);
+        });
+    }
+
+    /**
+     * Add a channel to several accounts under one alias, with one batch
+     * for each table in one transaction. Accounts which already have the
+     * channel keep their alias. Accounts without access to the channel
+     * become participants. The versions of the accounts which join are
+     * moved forward.
+     *
+     * @return The accounts which joined, in the order given.
+     */
+    public java.util.List<UUID> joinChannel(java.util.Collection<UUID> accountIds, String alias, Stored<Channel> channel)
+      throws SQLException {
+        return connectionManager.inTransaction(() -> {
+            final java.util.Set<UUID> members = new java.util.HashSet<UUID>();
+            for (Object[] chunk : ConnectionManager.inListChunks(accountIds)) {
+                final Object[] memberData = new Object[chunk.length + 1];
+                memberData[0] = channel.identity;
+                System.arraycopy(chunk, 0, memberData, 1, chunk.length);
+                connectionManager.prepareAndExecuteQuery(
+                    "SELECT account FROM AccountChannel WHERE channel = ? AND account IN " + ConnectionManager.inList(chunk.length),
+                    memberData, rs -> {
+                        while(rs.next()) {
+                            members.add(ConnectionManager.getUUID(rs, "account"));
+                        }
+                        return members;
+                    });
+            }
+            final java.util.List<UUID> joined = new java.util.ArrayList<UUID>();
+            final java.util.List<Object[]> touchRows = new java.util.ArrayList<Object[]>();
+            final java.util.List<Object[]> joinRows = new java.util.ArrayList<Object[]>();
+            final java.util.List<Object[]> accessRows = new java.util.ArrayList<Object[]>();
+            for (UUID accountId : new java.util.LinkedHashSet<UUID>(accountIds)) {
+                if (members.contains(accountId))
+                    continue;
+                joined.add(accountId);
+                touchRows.add(new Object[]{accountId});
+                joinRows.add(new Object[]{accountId, channel.identity, alias, accountId});
+                accessRows.add(new Object[]{channel.identity, accountId});
+            }
+            connectionManager.prepareAndExecuteBatch("UPDATE Account SET version = version+1 WHERE id = ?", touchRows);
+            connectionManager.prepareAndExecuteBatch("INSERT OR IGNORE INTO AccountChannel"
+                + " SELECT ?, ?, ?, coalesce(min(ordinal) - 1, 0) FROM AccountChannel WHERE account = ?", joinRows);
+            connectionManager.prepareAndExecuteBatch(
+                "INSERT OR IGNORE INTO Channel_permissions VALUES (?, ?, 'participant')", accessRows);
+            return joined;
+        });
+    }
+
+    /**
+     * Look up the accounts of several users by username.
+     * Names without an account are left out.
+     * @return The user of each account, as events name their sender,
+     *         by account identity.
+     */
+    public Map<UUID,String> lookupUsers(java.util.Collection<String> usernames)
+      throws SQLException {
+        final Map<UUID,String> users = new java.util.LinkedHashMap<UUID,String>();
+        for (Object[] chunk : ConnectionManager.inListChunks(usernames)) {
+            final String lookupQuery = "SELECT Account.id AS account, User.id AS user"
+                + " FROM User JOIN Account ON Account.user = User.id WHERE User.name IN " + ConnectionManager.inList(chunk.length);
+            connectionManager.prepareAndExecuteQuery(lookupQuery, chunk, rs -> {
+                while(rs.next()) {
+                    users.put(ConnectionManager.getUUID(rs, "account"), ConnectionManager.getUUID(rs, "user").toString());
+                }
+                return users;
+            });
+        }
+        return users;
+    }
+
+    /**
+     * Remove a channel from an account, deleting only that membership
+     * and the entries of the channel in the timeline of the account.
+     * The version of the account is moved forward.
+     *
+     * @return The account without the channel.
+     */
+    public Stored<Account> leaveChannel(Stored<Account> account, UUID channelId)
       throws DeletedException,
              SQLException {
+        return connectionManager.inTransaction(() -> {
+            touch(account.identity);
+            String leaveQuery = "DELETE FROM AccountChannel WHERE account = ? AND channel = ?";
+            Object[] leaveData = new Object[]{account.identity, channelId};
+            connectionManager.prepareAndExecuteUpdate(leaveQuery, leaveData);
+            // The activity of the channel leaves the timeline with it
+            String timelineQuery = "DELETE FROM Timeline WHERE account = ? AND channel = ?";
+            connectionManager.prepareAndExecuteUpdate(timelineQuery, leaveData);
+            return get(account.identity);
+        });
+    }
 
-        final String accountQuery = "SELECT version,user, key FROM Account WHERE id =?";
-        final String channelQuery = "SELECT channel,alias,ordinal FROM AccountChannel WHERE account = ? ORDER BY ordinal DESC";
-        final String[] data = new String[]{id.toString()};
+    /**
+     * Move the version of an account forward, whatever it is.
+     */
+    private void touch(UUID accountId)
+      throws DeletedException,
+             SQLException {
+        String touchQuery = "UPDATE Account SET version = version+1 WHERE id = ?";
+        Object[] touchData = new Object[]{accountId};
+        if(connectionManager.prepareAndExecuteUpdate(touchQuery, touchData) == 0)
+            throw new DeletedException();
+    }
 
-        final ResultSet accountResult = connectionManager.prepareAndExecuteQuery(accountQuery, data);
-        final ResultSet channelResult = connectionManager.prepareAndExecuteQuery(channelQuery, data);
+    /**
+     * Write the list of channels of an account as one batch.
+     */
+    private void writeChannels(UUID accountId, List<Pair<String,Reference<Channel,SQLException>>> channels)
+      throws SQLException {
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(channels.length);
+        addChannelRows(rows, accountId, channels);
+        final String addChannelQuery = "INSERT INTO AccountChannel VALUES(?,?,?,?)";
+        connectionManager.prepareAndExecuteBatch(addChannelQuery, rows);
+    }
 
-        if(accountResult.next()) {
-            final UUID version = UUID.fromString(accountResult.getString("version"));
+    /**
+     * Add the AccountChannel rows of a list of channels to a batch.
+     */
+    private static void addChannelRows(java.util.List<Object[]> rows, UUID accountId,
+                                       List<Pair<String,Reference<Channel,SQLException>>> channels) {
+        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
+        channels.forEach(element -> {
+            rows.add(new Object[]{accountId, element.second.identity, element.first, Integer.toString(ordinal.get())});
+            ordinal.accept(ordinal.get() + 1);
+        });
+    }
 
-            final UUID userid = UUID.fromString(accountResult.getString("user"));
+    @Override
+    public Stored<Account> get(UUID id)
+      throws DeletedException,
+             SQLException {
+        final Stored<Account> account = getAll(java.util.Collections.singleton(id)).get(id);
+        if(account == null)
+            throw new DeletedException();
+        return account;
+    }
 
-            final String userKey = accountResult.getString("key");
+    /**
+     * Save several accounts, with one batch for the accounts
+     * and one for all of their channels.
+     */
+    @Override
+    public java.util.Map<UUID,Stored<Account>> saveAll(java.util.Collection<Account> accounts)
+      throws SQLException {
+        final java.util.Map<UUID,Stored<Account>> stored = new java.util.LinkedHashMap<UUID,Stored<Account>>();
+        final java.util.List<Object[]> accountRows = new java.util.ArrayList<Object[]>(accounts.size());
+        final java.util.List<Object[]> channelRows = new java.util.ArrayList<Object[]>();
+        for (Account account : accounts) {
+            final Stored<Account> next = new Stored<>(account);
+            stored.put(next.identity, next);
+            accountRows.add(new Object[]{next.identity, next.version, account.user.identity, account.getPassword()});
+            addChannelRows(channelRows, next.identity, account.channels);
+        }
+        return connectionManager.inTransaction(() -> {
+            connectionManager.prepareAndExecuteBatch("INSERT INTO Account VALUES(?,?,?,?)", accountRows);
+            connectionManager.prepareAndExecuteBatch("INSERT INTO AccountChannel VALUES(?,?,?,?)", channelRows);
+            return stored;
+        });
+    }
 
-            final Stored<User> user = userStore.get(userid);
+    /**
+     * Delete several accounts as one batch. If any of them was updated
+     * or deleted since it was read, none of them are deleted.
+     */
+    @Override
+    public void deleteAll(java.util.Collection<Stored<Account>> accounts)
+       throws UpdatedException,
+              DeletedException,
+              SQLException {
+        final java.util.List<Stored<Account>> list = new java.util.ArrayList<Stored<Account>>(accounts);
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(list.size());
+        for (Stored<Account> account : list) {
+            rows.add(new Object[]{account.identity, account.version});
+        }
+        final int conflict = connectionManager.prepareAndExecuteCompareAndSetBatch(
+            "DELETE FROM Account WHERE id = ? AND version = ?", rows);
+        if(conflict >= 0)
+            throw new UpdatedException(get(list.get(conflict).identity));
+    }
 
-            // Get all the channels associated with this account
-            final List.Builder<Pair<String,Stored<Channel>>> channels = List.builder();
+    /**
+     * Get several accounts. The accounts and their lists of channels
+     * are read with one query each for every ConnectionManager.MAX_IN_LIST
+     * accounts, and their users are loaded in bulk. The channels are
+     * only loaded when they are used.
+     * An account whose user was deleted is left out.
+     */
+    @Override
+    public java.util.Map<UUID,Stored<Account>> getAll(java.util.Collection<UUID> ids)
+      throws SQLException {
+        final java.util.Map<UUID,Pair<Long,Pair<UUID,String>>> headers
+            = new java.util.HashMap<UUID,Pair<Long,Pair<UUID,String>>>();
+        final java.util.Map<UUID,List<Pair<String,UUID>>> channelIds
+            = new java.util.HashMap<UUID,List<Pair<String,UUID>>>();
+        for (Object[] chunk : ConnectionManager.inListChunks(ids)) {
+            final String in = ConnectionManager.inList(chunk.length);
+            final String accountQuery = "SELECT id,version,user,key FROM Account WHERE id IN " + in;
+            connectionManager.prepareAndExecuteQuery(accountQuery, chunk, accountResult -> {
+                while(accountResult.next()) {
+                    final long version = accountResult.getLong("version");
+                    final UUID userid = ConnectionManager.getUUID(accountResult, "user");
+                    final String userKey = accountResult.getString("key");
+                    headers.put(ConnectionManager.getUUID(accountResult, "id"),
+                                Pair.pair(version, Pair.pair(userid, userKey)));
+                }
+                return headers;
+            });
+
+            // Get all the channels associated with these accounts
+            final String channelQuery = "SELECT account,channel,alias FROM AccountChannel WHERE account IN " + in
+                + " ORDER BY account, ordinal DESC";
+            connectionManager.prepareAndExecuteQuery(channelQuery, chunk, channelResult -> {
+                while(channelResult.next()) {
+                    // The rows come last first, so each list is in order
+                    final Pair<String,UUID> entry = Pair.pair(channelResult.getString("alias"),
+                                                              ConnectionManager.getUUID(channelResult, "channel"));
+                    channelIds.merge(ConnectionManager.getUUID(channelResult, "account"), List.singleton(entry),
+                                     (later, ours) -> List.cons(entry, later));
+                }
+                return channelIds;
+            });
+        }
+        if(headers.isEmpty())
+            return new java.util.HashMap<UUID,Stored<Account>>();
+
+        // Load all the users at once
+        final java.util.Set<UUID> userIds = new java.util.HashSet<UUID>();
+        headers.values().forEach(header -> userIds.add(header.second.first));
+        final java.util.Map<UUID,Stored<User>> users = userStore.getAll(userIds);
+
+        final java.util.Map<UUID,Stored<Account>> accounts = new java.util.HashMap<UUID,Stored<Account>>();
+        headers.forEach((id, header) -> {
+            final Stored<User> user = users.get(header.second.first);
+            if (user == null)
+                return;
+            final List<Pair<String,Reference<Channel,SQLException>>> channels
+                = channelIds.getOrDefault(id, List.empty())
+                    .map(entry -> Pair.pair(entry.first, Reference.lazy(entry.second, channelStore)));
+            accounts.put(id, new Stored<Account>(new Account(user,channels, header.second.second),id,header.first));
+        });
+        return accounts;
+    }
 
-            while(channelResult.next()) {
-                final UUID channelId = UUID.fromString(channelResult.getString("channel"));
-                final String alias = channelResult.getString("alias");
-                channels.accept(
-                    new Pair<String,Stored<Channel>>(
-                        alias,channelStore.get(channelId)));
+    /**
+     * Get the current version of an account, without loading it.
+     */
+    @Override
+    public long getCurrentVersion(UUID id)
+      throws DeletedException,
+             SQLException {
+        final String versionQuery = "SELECT version FROM Account WHERE id = ?";
+        final Object[] versionData = new Object[]{id};
+        final Long version = connectionManager.prepareAndExecuteQuery(versionQuery, versionData, rs -> {
+            if(rs.next()) {
+                return rs.getLong("version");
             }
-            return (new Stored<Account>(new Account(user,channels.getList(), userKey),id,version));
-        } else {
+            return null;
+        });
+        if(version == null)
             throw new DeletedException();
-        }
+        return version;
     }
 
     //Retrieves password from database
     public String getPassword(String username)
             throws SQLException {
         final String passwordQuery = "SELECT key from Account INNER JOIN User ON user=User.id where User.name=?";
-        final String[] passwordData = new String[]{username};
+        final Object[] passwordData = new Object[]{username};
 
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(passwordQuery, passwordData);
-        String pwd = rs.getString("key");
-
-        return pwd;
+        return connectionManager.prepareAndExecuteQuery(passwordQuery, passwordData,
+                rs -> rs.getString("key"));
     }
 
 
@@ -177,15 +526,16 @@ public final class AccountStorage implements Storage<Account,SQLException> {
      */
     public Stored<Account> lookup(String username) throws DeletedException, SQLException {
         final String lookupAccountQuery = "SELECT Account.id from Account INNER JOIN User ON user=User.id where User.name= ?";
-        final String[] lookupAccountData = new String[]{username};
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(lookupAccountQuery, lookupAccountData);
-
-        if(rs.next()) {
-            final UUID identity =
-                    UUID.fromString(rs.getString("id"));
-            return get(identity);
-        }
-        throw new DeletedException();
+        final Object[] lookupAccountData = new Object[]{username};
+        final UUID identity = connectionManager.prepareAndExecuteQuery(lookupAccountQuery, lookupAccountData, rs -> {
+            if(rs.next()) {
+                return ConnectionManager.getUUID(rs, "id");
+            }
+            return null;
+        });
+        if(identity == null)
+            throw new DeletedException();
+        return get(identity);
     }
 
     /**
@@ -193,21 +543,18 @@ public final class AccountStorage implements Storage<Account,SQLException> {
      */
     public boolean checkUserAccess(Stored<Account> account, Stored<Channel> channel) throws SQLException{
         String checkPermQuery = "SELECT * FROM Channel_permissions WHERE channel = ? AND account = ?;";
-        String[] checkPermData = new String[]{channel.identity.toString(),account.identity.toString()};
-        boolean hasNext = false;
-
-        ResultSet rs = connectionManager.prepareAndExecuteQuery(checkPermQuery,checkPermData);
-        hasNext = rs.next();
+        Object[] checkPermData = new Object[]{channel.identity,account.identity};
 
-        return hasNext;
+        return connectionManager.prepareAndExecuteQuery(checkPermQuery,checkPermData,
+                rs -> rs.next());
     }
 
     /**
      * Sets the user access from the database.
      */
     public void setUserAccess(Stored<Account> account, Stored<Channel> channel, String role) throws SQLException {
-        String insertPermQuery = "INSERT INTO Channel_permissions VALUES (?, ?, ?);";
-        String[] insertPermData = new String[]{channel.identity.toString(),account.identity.toString(),role};
+        String insertPermQuery = "INSERT OR REPLACE INTO Channel_permissions VALUES (?, ?, ?);";
+        Object[] insertPermData = new Object[]{channel.identity,account.identity,role};
 
         connectionManager.prepareAndExecuteUpdate(insertPermQuery,insertPermData);
     }
@@ -217,21 +564,39 @@ public final class AccountStorage implements Storage<Account,SQLException> {
      */
     public void updateUserAccess(Stored<Account> account, Stored<Channel> channel, String role) throws SQLException {
         String updatePermQuery = "UPDATE Channel_permissions SET permission = ? WHERE channel = ? AND account = ?;";
-        String[] updatePermData = new String[]{role,channel.identity.toString(),account.identity.toString()};
+        Object[] updatePermData = new Object[]{role,channel.identity,account.identity};
         connectionManager.prepareAndExecuteUpdate(updatePermQuery,updatePermData);
 
     }
 
     /**
-     * Retrieves the user access from the database
+     * Retrieves the user access from the database,
+     * or the empty string for no access.
      */
     public String getUserAccess(Stored<Account> account, UUID channel) throws SQLException{
         String insertPermQuery = "SELECT * FROM Channel_permissions WHERE channel = ? AND account = ?;";
-        String[] insertPermData = new String[]{channel.toString(),account.identity.toString()};
+        Object[] insertPermData = new Object[]{channel,account.identity};
 
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(insertPermQuery,insertPermData);
+        return connectionManager.prepareAndExecuteQuery(insertPermQuery,insertPermData,
+                rs -> rs.next() ? rs.getString("permission") : "");
+    }
 
-        return rs.getString("permission");
+    /**
+     * Look up the UUID of a user based on their username,
+     * in the form events name their sender.
+     */
+    public String getUserId(String username) throws DeletedException, SQLException {
+        final String idUserQuery = "SELECT id FROM User WHERE name = ?";
+        final Object[] idUserData = new Object[]{username};
+        final UUID identity = connectionManager.prepareAndExecuteQuery(idUserQuery, idUserData, rs -> {
+            if(rs.next()) {
+                return ConnectionManager.getUUID(rs, "id");
+            }
+            return null;
+        });
+        if(identity == null)
+            throw new DeletedException();
+        return identity.toString();
     }
 
     /**
@@ -239,9 +604,9 @@ public final class AccountStorage implements Storage<Account,SQLException> {
      */
     public String getUserName( String UserUUID) throws SQLException {
         String nameUserQuery = "SELECT * FROM User WHERE id = ?;";
-        String[] nameUserDate = new String[]{UserUUID};
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(nameUserQuery,nameUserDate);
-        return rs.getString("name");
+        Object[] nameUserDate = new Object[]{UUID.fromString(UserUUID)};
+        return connectionManager.prepareAndExecuteQuery(nameUserQuery,nameUserDate,
+                rs -> rs.getString("name"));
     }
 
 }
@@ -9,21 +9,82 @@ import java.time.Instant;
  */
 public final class Channel {
     public final String name;
+    /* The newest events of the channel, newest first. This is
+       a window of the channel, and need not hold all of its events. */
     public final List<Stored<Event>> events;
+    /* The sequence number of the oldest event in the window. */
+    public final long start;
+    /* The sequence number of the newest event in the window, or
+       start - 1 if the window is empty. Deleted events leave gaps
+       in the sequence numbers, so this need not be start + the
+       number of events - 1. */
+    public final long last;
+    /* The sequence number of the oldest event of the channel. */
+    public final long first;
     
     /**
      * Construct a Channel object from name and events.
      */
     public Channel(String name, List<Stored<Event>> events) {
+        this(name, events, 0);
+    }
+
+    /**
+     * Construct a Channel object from a window of its events,
+     * numbered without gaps.
+     * @param start The sequence number of the oldest event in the window.
+     */
+    public Channel(String name, List<Stored<Event>> events, long start) {
+        this(name, events, start, start + events.length - 1, 0);
+    }
+
+    /**
+     * Construct a Channel object from a window of its events.
+     * @param start The sequence number of the oldest event in the window.
+     * @param last The sequence number of the newest event in the window.
+     * @param first The sequence number of the oldest event of the channel.
+     */
+    public Channel(String name, List<Stored<Event>> events, long start, long last, long first) {
         this.name=name;
         this.events=events;
+        this.start=start;
+        this.last=last;
+        this.first=first;
+    }
+
+    /**
+     * Check if there are events older than the window.
+     */
+    public boolean hasOlderEvents() {
+        return start > first;
     }
     
     /**
-     * Post a new event to the channel.
+     * The sequence number of the newest event in the window,
+     * or start - 1 if the window is empty.
+     */
+    public long lastSequenceNumber() {
+        return last;
+    }
+
+    /**
+     * Post a new event to the channel. The event gets its sequence
+     * number when the channel is stored, which may be above last + 1.
      */
     public Channel postEvent(Stored<Event> event) {
-        return new Channel(name, List.cons(event,events));
+        return new Channel(name, List.cons(event,events), start, last + 1, first);
+    }
+
+    /**
+     * Post several events to the channel.
+     * @param events The events, in the order they are posted.
+     */
+    public Channel postEvents(Iterable<Stored<Event>> events) {
+        Channel channel = this;
+        for (Stored<Event> event : events) {
+            channel = channel.postEvent(event);
+        }
+        return channel;
     }
     
     /**
@@ -1,11 +1,11 @@
 package inf226.inchat;
 
-import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.UUID;
-import java.util.TreeMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Consumer;
 
 import inf226.storage.*;
@@ -19,27 +19,82 @@ import inf226.util.*;
 public final class ChannelStorage
     implements Storage<Channel,SQLException> {
 
+    /**
+     * The number of events loaded by get().
+     */
+    public static final int DEFAULT_WINDOW = 100;
+
+    /**
+     * Write the summary of a channel from its rows.
+     */
+    private static final String REFRESH_SUMMARY_QUERY =
+        "INSERT OR REPLACE INTO ChannelSummary (channel, name, version, events, last_time, last_sender, last_ordinal)"
+        + " SELECT id, name, version,"
+        + " (SELECT count(*) FROM ChannelEvent WHERE ChannelEvent.channel = Channel.id),"
+        + " (SELECT Event.time FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+        + "  WHERE ChannelEvent.channel = Channel.id ORDER BY ChannelEvent.ordinal DESC LIMIT 1),"
+        + " (SELECT Event.sender FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+        + "  WHERE ChannelEvent.channel = Channel.id ORDER BY ChannelEvent.ordinal DESC LIMIT 1),"
+        + " (SELECT max(ordinal) FROM ChannelEvent WHERE ChannelEvent.channel = Channel.id)"
+        + " FROM Channel WHERE id = ?";
+
+    /**
+     * The columns of a channel read by readHeader(). The oldest
+     * sequence number of a channel without events is the next one.
+     */
+    private static final String HEADER_COLUMNS = "id, version, name, next_seq,"
+        + " coalesce((SELECT min(ordinal) FROM ChannelEvent WHERE ChannelEvent.channel = Channel.id), next_seq) AS first";
+
+    /**
+     * The default number of members above which events posted to
+     * a channel are not copied into the timeline of each member.
+     */
+    public static final int FAN_OUT_LIMIT = 1000;
+
+    /**
+     * The condition that the account of an AccountChannel row
+     * is not banned from its channel.
+     */
+    private static final String NOT_BANNED =
+        " NOT EXISTS (SELECT 1 FROM Channel_permissions WHERE Channel_permissions.channel = AccountChannel.channel"
+        + " AND Channel_permissions.account = AccountChannel.account AND Channel_permissions.permission = 'banned')";
+
+    /**
+     * Copy a posted event into the timelines of the members of its
+     * channel, unless the channel has more than a limit of members.
+     * Counting stops at the limit, so a large channel costs as little
+     * as a small one. Banned members get nothing.
+     */
+    private static final String FAN_OUT_QUERY =
+        "INSERT OR IGNORE INTO Timeline (account, position, channel, event)"
+        + " SELECT AccountChannel.account, Event.rowid, AccountChannel.channel, Event.id"
+        + " FROM AccountChannel JOIN Event ON Event.id = ?"
+        + " WHERE AccountChannel.channel = ? AND" + NOT_BANNED
+        + " AND (SELECT 1 FROM AccountChannel AS Member WHERE Member.channel = ? LIMIT 1 OFFSET ?) IS NULL";
+
     final ConnectionManager connectionManager;
 
+    /* Channels with more members than this are read into timelines
+     * when they are loaded, instead of written when events are posted.
+     */
+    private volatile int fanOutLimit = FAN_OUT_LIMIT;
+
     /* The waiters object represent the callbacks to
-     * make when the channel is updated.
+     * make when the channel is updated. It is locked per
+     * channel, so updates to different channels do not wait
+     * for each other.
      */
-    private Map<UUID,List<Consumer<Stored<Channel>>>> waiters
-        = new TreeMap<UUID,List<Consumer<Stored<Channel>>>>();
+    private final ConcurrentMap<UUID,List<Consumer<Stored<Channel>>>> waiters
+        = new ConcurrentHashMap<UUID,List<Consumer<Stored<Channel>>>>();
     public final EventStorage eventStore;
     
-    public ChannelStorage(Connection connection,
+    public ChannelStorage(ConnectionManager connectionManager,
                           EventStorage eventStore) 
       throws SQLException {
-        this.connectionManager = new ConnectionManager(connection);
+        this.connectionManager = connectionManager;
         this.eventStore = eventStore;
 
-        String channelTableQuery = "CREATE TABLE IF NOT EXISTS Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT)";
-        String eventTableQuery = "CREATE TABLE IF NOT EXISTS ChannelEvent (channel TEXT, event TEXT, ordinal INTEGER, PRIMARY KEY(channel,event), FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE, FOREIGN KEY(event) REFERENCES Event(id) ON DELETE CASCADE)";
-
-        connectionManager.prepareAndExecuteUpdate(channelTableQuery, null);
-        connectionManager.prepareAndExecuteUpdate(eventTableQuery, null);
-
+        Schema.migrate(connectionManager);
     }
     
     @Override
@@ -48,105 +103,500 @@ public final class ChannelStorage
         
         final Stored<Channel> stored = new Stored<Channel>(channel);
 
-        String channelQuery = "INSERT INTO Channel VALUES(?,?,?)";
-        String[] channelData = new String[]{stored.identity.toString(), stored.version.toString(), channel.name};
-        connectionManager.prepareAndExecuteUpdate(channelQuery, channelData);
-        
-        // Write the list of events
-        final Maybe.Builder<SQLException> exception = Maybe.builder();
-        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-        channel.events.forEach(event -> {
-            final String eventQuery = "INSERT INTO ChannelEvent VALUES(?,?,?)";
-            final String[] eventData = new String[]{stored.identity.toString(), event.identity.toString(), ordinal.get().toString()};
-            try { connectionManager.prepareAndExecuteUpdate(eventQuery, eventData); }
-            catch (SQLException e) { exception.accept(e) ; }
-            ordinal.accept(ordinal.get() + 1);
+        return connectionManager.inTransaction(() -> {
+            String channelQuery = "INSERT INTO Channel (id,version,name,next_seq) VALUES(?,?,?,?)";
+            Object[] channelData = new Object[]{stored.identity, stored.version, channel.name,
+                                                channel.start + channel.events.length};
+            connectionManager.prepareAndExecuteUpdate(channelQuery, channelData);
+            
+            // Write the list of events
+            writeEvents(stored.identity, channel.events, channel.start);
+            connectionManager.prepareAndExecuteUpdate(REFRESH_SUMMARY_QUERY, new Object[]{stored.identity});
+            return stored;
         });
-
-        Util.throwMaybe(exception.getMaybe());
-        return stored;
     }
     
     @Override
-    public synchronized Stored<Channel> update(Stored<Channel> channel,
+    public Stored<Channel> update(Stored<Channel> channel,
                                             Channel new_channel)
         throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Channel> current = get(channel.identity);
-        final Stored<Channel> updated = current.newVersion(new_channel);
-        if(current.version.equals(channel.version)) {
-            String updateChannelQuery = "UPDATE Channel SET (version,name) =(?,?) WHERE id=?";
-            String[] updateChannelData = new String[]{updated.version.toString(), new_channel.name, updated.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(updateChannelQuery, updateChannelData);
-
-
-            // Rewrite the list of events
-            String deleteEventQuery = "DELETE FROM ChannelEvent WHERE channel=?";
-            String[] deleteEventData = new String[]{channel.identity.toString()};
-           connectionManager.prepareAndExecuteUpdate(deleteEventQuery, deleteEventData);
-            
-            final Maybe.Builder<SQLException> exception = Maybe.builder();
-            final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-            new_channel.events.forEach(event -> {
-                final String insertEventQuery = "INSERT INTO ChannelEvent VALUES(?,?,?)";
-                final String[] insertEventData = new String[]{channel.identity.toString(), event.identity.toString(), ordinal.get().toString()};
-
-                try { connectionManager.prepareAndExecuteUpdate(insertEventQuery, insertEventData); }
-                catch (SQLException e) { exception.accept(e) ; }
-                ordinal.accept(ordinal.get() + 1);
-            });
+        final Maybe.Builder<UpdatedException> conflict = Maybe.builder();
+        final Stored<Channel> updated = connectionManager.inTransaction(() -> {
+            // If events were removed or reordered, those not in the
+            // loaded window are posted
+            final Maybe<List<Stored<Channel.Event>>> posted
+                = postedEvents(channel.value.events, new_channel.events);
+            final List<Stored<Channel.Event>> added = posted.isNothing()
+                ? missingEvents(channel.value.events, new_channel.events)
+                : posted.defaultValue(List.empty());
 
-            Util.throwMaybe(exception.getMaybe());
-        } else {
-            throw new UpdatedException(current);
-        }
-        giveNextVersion(updated);
+            // Reserve a sequence number for each new event
+            String updateChannelQuery = "UPDATE Channel SET (version,name,next_seq) =(version+1,?,next_seq+?) WHERE id=? AND version=?";
+            Object[] updateChannelData = new Object[]{new_channel.name, added.length, channel.identity, channel.version};
+            if(!connectionManager.prepareAndExecuteCompareAndSet(updateChannelQuery, updateChannelData)) {
+                // The channel was updated or deleted since it was read
+                final Stored<Channel> current = get(channel.identity);
+                conflict.accept(new UpdatedException(current));
+                return current;
+            }
+            appendEvents(channel.identity, added);
+            fanOut(channel.identity, added);
+            final Stored<Channel> next;
+            if (posted.isNothing()) {
+                // Events were removed or reordered. The removed events are
+                // taken out, and the others keep their sequence numbers.
+                final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>();
+                missingEvents(new_channel.events, channel.value.events).forEach(event ->
+                    rows.add(new Object[]{channel.identity, event.identity}));
+                connectionManager.prepareAndExecuteBatch("DELETE FROM ChannelEvent WHERE channel=? AND event=?", rows);
+                connectionManager.prepareAndExecuteUpdate(REFRESH_SUMMARY_QUERY, new Object[]{channel.identity});
+                next = get(channel.identity, new_channel.events.length);
+            } else {
+                next = channel.newVersion(numberPosted(channel.identity, channel.value, new_channel, added.length));
+                // Only count the new events in the summary
+                final Maybe<Channel.Event> last = added.last.map(event -> event.value);
+                String summaryQuery = "UPDATE ChannelSummary SET name=?, version=?, events=events+?,"
+                    + " last_time=coalesce(?,last_time), last_sender=coalesce(?,last_sender),"
+                    + " last_ordinal=(SELECT max(ordinal) FROM ChannelEvent WHERE channel=?) WHERE channel=?";
+                Object[] summaryData = new Object[]{new_channel.name, next.version, added.length,
+                    last.map(event -> event.time.toString()).defaultValue(null),
+                    last.map(event -> event.sender).defaultValue(null),
+                    channel.identity, channel.identity};
+                connectionManager.prepareAndExecuteUpdate(summaryQuery, summaryData);
+            }
+            connectionManager.afterCommit(() -> giveNextVersion(next));
+            return next;
+        });
+        Util.throwMaybe(conflict.getMaybe());
         return updated;
     }
    
     @Override
-    public synchronized void delete(Stored<Channel> channel)
+    public void delete(Stored<Channel> channel)
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Channel> current = get(channel.identity);
-        if(current.version.equals(channel.version)) {
-            String deleteChannelQuery = "DELETE FROM Channel WHERE id =?";
-            String[] deleteChannelData = new String[]{channel.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(deleteChannelQuery, deleteChannelData);
-        } else {
-        throw new UpdatedException(current);
+        String deleteChannelQuery = "DELETE FROM Channel WHERE id =? AND version =?";
+        Object[] deleteChannelData = new Object[]{channel.identity, channel.version};
+        if(!connectionManager.prepareAndExecuteCompareAndSet(deleteChannelQuery, deleteChannelData)) {
+            throw new UpdatedException(get(channel.identity));
         }
     }
+    /**
+     * Write the list of events of a channel as one batch.
+     * The ordinal of an event is its sequence number in the channel,
+     * so the last element of the list, the oldest event, gets ordinal start.
+     */
+    private void writeEvents(UUID channelId, List<Stored<Channel.Event>> events, long start)
+      throws SQLException {
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(events.length);
+        addEventRows(rows, channelId, events, start);
+        final String insertEventQuery = "INSERT INTO ChannelEvent VALUES(?,?,?)";
+        connectionManager.prepareAndExecuteBatch(insertEventQuery, rows);
+    }
+
+    /**
+     * Add the ChannelEvent rows of a list of events to a batch.
+     */
+    private static void addEventRows(java.util.List<Object[]> rows, UUID channelId,
+                                     List<Stored<Channel.Event>> events, long start) {
+        final long last = start + events.length - 1;
+        final Mutable<Long> ordinal = new Mutable<Long>(last);
+        events.forEach(event -> {
+            rows.add(new Object[]{channelId, event.identity, ordinal.get()});
+            ordinal.accept(ordinal.get() - 1);
+        });
+    }
+
+    /**
+     * Add events to the end of a channel, one row each.
+     * The events get the sequence numbers last reserved in Channel.next_seq,
+     * so a sequence number is never given twice, even after the newest
+     * event is deleted.
+     * @param events The new events, oldest first.
+     */
+    private void appendEvents(UUID channelId, List<Stored<Channel.Event>> events)
+      throws SQLException {
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(events.length);
+        final Mutable<Integer> before = new Mutable<Integer>(events.length);
+        events.forEach(event -> {
+            rows.add(new Object[]{channelId, event.identity, before.get(), channelId});
+            before.accept(before.get() - 1);
+        });
+        final String appendEventQuery = "INSERT INTO ChannelEvent"
+            + " SELECT ?, ?, next_seq - ? FROM Channel WHERE id = ?";
+        connectionManager.prepareAndExecuteBatch(appendEventQuery, rows);
+    }
+
+    /**
+     * Give a channel with posted events the sequence numbers
+     * of its window, after the events are appended.
+     * @param old The window the events were posted to.
+     * @param count The number of events posted.
+     */
+    private Channel numberPosted(UUID channelId, Channel old, Channel channel, int count)
+      throws SQLException {
+        final long next = connectionManager.prepareAndExecuteQuery(
+            "SELECT next_seq FROM Channel WHERE id = ?", new Object[]{channelId},
+            rs -> rs.next() ? rs.getLong("next_seq") : 0L);
+        // The posted events have the numbers just below next_seq
+        final long start = old.events.length == 0 ? next - count : old.start;
+        final long last = count == 0 ? old.last : next - 1;
+        return new Channel(channel.name, channel.events, start, last, Math.min(old.first, start));
+    }
+
+    /**
+     * Copy posted events into the timelines of the members of a channel,
+     * as one batch, if the channel has at most fanOutLimit members.
+     */
+    private void fanOut(UUID channelId, List<Stored<Channel.Event>> events)
+      throws SQLException {
+        final int limit = fanOutLimit;
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(events.length);
+        events.forEach(event ->
+            rows.add(new Object[]{event.identity, channelId, channelId, limit}));
+        connectionManager.prepareAndExecuteBatch(FAN_OUT_QUERY, rows);
+    }
+
+    /**
+     * Set the number of members above which events posted to a channel
+     * are read into timelines instead of written into them.
+     */
+    public void setFanOutLimit(int members) {
+        fanOutLimit = members;
+    }
+
+    /**
+     * Get a page of the activity timeline of an account: the events of
+     * the channels it is a member of and not banned from, newest first.
+     *
+     * Events of channels with at most fanOutLimit members are read from
+     * the Timeline table with one range scan. Events of larger channels
+     * are read from each channel, and merged in.
+     * @param before Only entries with a position below this are returned.
+     * @param limit The maximal number of entries.
+     */
+    public List<TimelineEntry> getTimeline(UUID accountId, long before, int limit)
+      throws SQLException {
+        final String timelineQuery = "SELECT Timeline.position AS position, Timeline.channel AS channel, "
+            + EventStorage.EVENT_COLUMNS
+            + " FROM Timeline JOIN Event ON Event.id = Timeline.event"
+            + " WHERE Timeline.account = ? AND Timeline.position < ?"
+            // Entries of channels the account has left
+            + " AND EXISTS (SELECT 1 FROM AccountChannel WHERE AccountChannel.account = Timeline.account"
+            + " AND AccountChannel.channel = Timeline.channel)"
+            // Entries copied before the account was banned
+            + " AND NOT EXISTS (SELECT 1 FROM Channel_permissions WHERE Channel_permissions.channel = Timeline.channel"
+            + " AND Channel_permissions.account = Timeline.account AND Channel_permissions.permission = 'banned')"
+            + " ORDER BY Timeline.position DESC LIMIT ?";
+        final java.util.TreeMap<Long,TimelineEntry> entries
+            = connectionManager.prepareAndExecuteQuery(timelineQuery, new Object[]{accountId, before, limit},
+                                                       ChannelStorage::readTimeline);
+
+        final String largeQuery = "SELECT channel FROM AccountChannel WHERE account = ? AND" + NOT_BANNED
+            + " AND (SELECT 1 FROM AccountChannel AS Member WHERE Member.channel = AccountChannel.channel"
+            + " LIMIT 1 OFFSET ?) IS NOT NULL";
+        final java.util.List<UUID> large = connectionManager.prepareAndExecuteQuery(
+            largeQuery, new Object[]{accountId, fanOutLimit}, rs -> {
+                final java.util.List<UUID> result = new java.util.ArrayList<UUID>();
+                while(rs.next()) {
+                    result.add(ConnectionManager.getUUID(rs, "channel"));
+                }
+                return result;
+            });
+        // Events posted before a channel grew large are in both
+        final String channelQuery = "SELECT Event.rowid AS position, ChannelEvent.channel AS channel, "
+            + EventStorage.EVENT_COLUMNS
+            + " FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+            + " WHERE ChannelEvent.channel = ? AND Event.rowid < ? ORDER BY ChannelEvent.ordinal DESC LIMIT ?";
+        for (UUID channelId : large) {
+            entries.putAll(connectionManager.prepareAndExecuteQuery(
+                channelQuery, new Object[]{channelId, before, limit}, ChannelStorage::readTimeline));
+        }
+
+        final List.Builder<TimelineEntry> page = List.builder();
+        entries.values().stream().limit(limit).forEach(page);
+        // The builder reverses the entries
+        return page.getList().reverse();
+    }
+
+    /**
+     * Read the entries of a timeline query, newest first.
+     */
+    private static java.util.TreeMap<Long,TimelineEntry> readTimeline(ResultSet rs)
+      throws SQLException {
+        final java.util.TreeMap<Long,TimelineEntry> entries
+            = new java.util.TreeMap<Long,TimelineEntry>(java.util.Comparator.reverseOrder());
+        while(rs.next()) {
+            final long position = rs.getLong("position");
+            entries.put(position, new TimelineEntry(position,
+                                                    ConnectionManager.getUUID(rs, "channel"),
+                                                    EventStorage.readEvent(rs)));
+        }
+        return entries;
+    }
+
+    /**
+     * Search the messages of the channels an account can read: those it
+     * has joined and is not banned from. The best matches come first.
+     * @param text The words to search for. Messages with all of them match.
+     * @param offset The number of matches to skip, for later pages.
+     * @param limit The maximal number of matches.
+     * @return The channels and events of the matches.
+     */
+    public List<Pair<UUID,Stored<Channel.Event>>> search(UUID accountId, String text, int offset, int limit)
+      throws SQLException {
+        final String match = matchQuery(text);
+        if (match.isEmpty())
+            return List.empty();
+        final String searchQuery = "SELECT ChannelEvent.channel AS channel, " + EventStorage.EVENT_COLUMNS
+            + " FROM EventText JOIN Event ON Event.rowid = EventText.rowid"
+            + " JOIN ChannelEvent ON ChannelEvent.event = Event.id"
+            + " JOIN AccountChannel ON AccountChannel.account = ? AND AccountChannel.channel = ChannelEvent.channel"
+            + " WHERE EventText MATCH ?"
+            + " AND NOT EXISTS (SELECT 1 FROM Channel_permissions WHERE Channel_permissions.channel = ChannelEvent.channel"
+            + " AND Channel_permissions.account = ? AND Channel_permissions.permission = 'banned')"
+            + " ORDER BY EventText.rank LIMIT ? OFFSET ?";
+        final Object[] searchData = new Object[]{accountId, match, accountId, limit, offset};
+        return connectionManager.prepareAndExecuteQuery(searchQuery, searchData, rs -> {
+            List<Pair<UUID,Stored<Channel.Event>>> matches = List.empty();
+            while(rs.next()) {
+                matches = List.cons(Pair.pair(ConnectionManager.getUUID(rs, "channel"),
+                                              EventStorage.readEvent(rs)), matches);
+            }
+            // Best match first
+            return matches.reverse();
+        });
+    }
+
+    /**
+     * Make a full-text query matching all the words of a text.
+     * Each word is quoted, so no characters of the text
+     * are read as query syntax.
+     */
+    static String matchQuery(String text) {
+        final StringBuilder query = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            query.append(query.length() == 0 ? "" : " ")
+                 .append('"').append(word.replace("\"", "\"\"")).append('"');
+        }
+        return query.toString();
+    }
+
+    /**
+     * Find the events posted on top of an old list of events.
+     * @return The new events, oldest first, or nothing if the old
+     *         list is not the tail of the new one.
+     */
+    private static Maybe<List<Stored<Channel.Event>>> postedEvents(List<Stored<Channel.Event>> old,
+                                                                 List<Stored<Channel.Event>> events) {
+        final List.Builder<Stored<Channel.Event>> posted = List.builder();
+        List<Stored<Channel.Event>> rest = events;
+        while (rest.length > old.length) {
+            posted.accept(rest.head().defaultValue(null));
+            rest = rest.tail().defaultValue(List.empty());
+        }
+        if (rest == old || rest.equals(old))
+            return Maybe.just(posted.getList());
+        return Maybe.nothing();
+    }
+
+    /**
+     * Find the events of a list which are not in another list.
+     * @return The missing events, oldest first.
+     */
+    private static List<Stored<Channel.Event>> missingEvents(List<Stored<Channel.Event>> from,
+                                                             List<Stored<Channel.Event>> events) {
+        final java.util.Set<UUID> present = new java.util.HashSet<UUID>();
+        from.forEach(event -> present.add(event.identity));
+        final List.Builder<Stored<Channel.Event>> missing = List.builder();
+        events.forEach(event -> {
+            if (!present.contains(event.identity))
+                missing.accept(event);
+        });
+        return missing.getList();
+    }
+
+    /**
+     * Get a channel with its DEFAULT_WINDOW newest events.
+     */
     @Override
     public Stored<Channel> get(UUID id)
       throws DeletedException,
              SQLException {
+        return get(id, DEFAULT_WINDOW);
+    }
 
-        final String channelQuery = "SELECT version,name FROM Channel WHERE id = ?";
-        final String eventQuery = "SELECT event,ordinal FROM ChannelEvent WHERE channel = ? ORDER BY ordinal DESC";
-        final String[] data = new String[]{id.toString()};
+    /**
+     * Get a channel with its newest events.
+     * @param window The maximal number of events to load.
+     */
+    public Stored<Channel> get(UUID id, int window)
+      throws DeletedException,
+             SQLException {
+        return getPage(id, Long.MAX_VALUE, window);
+    }
 
-        final ResultSet channelResult = connectionManager.prepareAndExecuteQuery(channelQuery, data);
-        final ResultSet eventResult = connectionManager.prepareAndExecuteQuery(eventQuery, data);
+    /**
+     * Get a channel with the events before a cursor.
+     * @param before Only events with a sequence number below this are loaded.
+     * @param window The maximal number of events to load.
+     */
+    public Stored<Channel> getPage(UUID id, long before, int window)
+      throws DeletedException,
+             SQLException {
 
-        if(channelResult.next()) {
-            final UUID version = 
-                UUID.fromString(channelResult.getString("version"));
-            final String name =
-                channelResult.getString("name");
+        final String channelQuery = "SELECT " + HEADER_COLUMNS + " FROM Channel WHERE id = ?";
+        final Object[] data = new Object[]{id};
 
-            // Get all the events associated with this channel
-            final List.Builder<Stored<Channel.Event>> events = List.builder();
-            while(eventResult.next()) {
-                final UUID eventId = UUID.fromString(eventResult.getString("event"));
-                events.accept(eventStore.get(eventId));
+        final Pair<Long,Channel> header = connectionManager.prepareAndExecuteQuery(channelQuery, data, channelResult -> {
+            if(channelResult.next()) {
+                return readHeader(channelResult);
             }
-            return (new Stored<Channel>(new Channel(name,events.getList()),id,version));
-        } else {
+            return null;
+        });
+        if(header == null)
             throw new DeletedException();
+
+        final List<Pair<Long,Stored<Channel.Event>>> page = getEventsBefore(id, before, window);
+        return (new Stored<Channel>(page(header.second, page),id,header.first));
+    }
+
+    /**
+     * Read the version of a channel, and the channel with an empty
+     * window, from a row of HEADER_COLUMNS. An empty window has no
+     * older events.
+     */
+    private static Pair<Long,Channel> readHeader(ResultSet rs) throws SQLException {
+        final long first = rs.getLong("first");
+        return Pair.pair(rs.getLong("version"),
+                         new Channel(rs.getString("name"), List.empty(), first, first - 1, first));
+    }
+
+    /**
+     * Get a page of older events of a channel.
+     * @param before Only events with a sequence number below this are returned.
+     * @param limit The maximal number of events.
+     * @return The sequence numbers and events, newest first.
+     */
+    public List<Pair<Long,Stored<Channel.Event>>> getEventsBefore(UUID channelId, long before, int limit)
+      throws SQLException {
+        final String eventQuery = "SELECT ChannelEvent.ordinal AS ordinal, " + EventStorage.EVENT_COLUMNS
+            + " FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+            + " WHERE ChannelEvent.channel = ? AND ChannelEvent.ordinal < ? ORDER BY ChannelEvent.ordinal DESC LIMIT ?";
+        final Object[] eventData = new Object[]{channelId, before, limit};
+        // The rows come newest first
+        return connectionManager.prepareAndExecuteQuery(eventQuery, eventData, ChannelStorage::readEvents).reverse();
+    }
+
+    /**
+     * Get a page of newer events of a channel.
+     * @param after Only events with a sequence number above this are returned.
+     * @param limit The maximal number of events.
+     * @return The sequence numbers and events, newest first.
+     */
+    public List<Pair<Long,Stored<Channel.Event>>> getEventsAfter(UUID channelId, long after, int limit)
+      throws SQLException {
+        final String eventQuery = "SELECT ChannelEvent.ordinal AS ordinal, " + EventStorage.EVENT_COLUMNS
+            + " FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+            + " WHERE ChannelEvent.channel = ? AND ChannelEvent.ordinal > ? ORDER BY ChannelEvent.ordinal ASC LIMIT ?";
+        final Object[] eventData = new Object[]{channelId, after, limit};
+        // The rows come oldest first
+        return connectionManager.prepareAndExecuteQuery(eventQuery, eventData, ChannelStorage::readEvents);
+    }
+
+    /**
+     * Read the sequence numbers and events of a joined ChannelEvent query.
+     * @return The events in the opposite order of the rows.
+     */
+    private static List<Pair<Long,Stored<Channel.Event>>> readEvents(ResultSet eventResult)
+      throws SQLException {
+        List<Pair<Long,Stored<Channel.Event>>> events = List.empty();
+        while(eventResult.next()) {
+            events = List.cons(Pair.pair(eventResult.getLong("ordinal"),
+                                         EventStorage.readEvent(eventResult)), events);
         }
+        return events;
+    }
+
+    /**
+     * Get several channels, each with its newest events.
+     * The channels are loaded with two queries for every
+     * ConnectionManager.MAX_IN_LIST of them: one for the channels,
+     * and one for all their events.
+     * @param ids The identities of the channels.
+     * @param window The maximal number of events to load for each channel.
+     * @return The channels which exist, by identity.
+     */
+    public java.util.Map<UUID,Stored<Channel>> get(java.util.Collection<UUID> ids, int window)
+      throws SQLException {
+        final java.util.Map<UUID,Stored<Channel>> channels = new java.util.HashMap<UUID,Stored<Channel>>();
+        for (Object[] chunk : ConnectionManager.inListChunks(ids)) {
+            final String in = ConnectionManager.inList(chunk.length);
+            final java.util.Map<UUID,Pair<Long,Channel>> headers = connectionManager.prepareAndExecuteQuery(
+                "SELECT " + HEADER_COLUMNS + " FROM Channel WHERE id IN " + in, chunk, rs -> {
+                    final java.util.Map<UUID,Pair<Long,Channel>> result = new java.util.HashMap<UUID,Pair<Long,Channel>>();
+                    while(rs.next()) {
+                        result.put(ConnectionManager.getUUID(rs, "id"), readHeader(rs));
+                    }
+                    return result;
+                });
+            if (headers.isEmpty())
+                continue;
+
+            // The lowest sequence number outside the window of each channel
+            final String eventQuery = "WITH ChannelFloor(channel, floor) AS"
+                + " (SELECT id, coalesce((SELECT ordinal FROM ChannelEvent WHERE ChannelEvent.channel = Channel.id"
+                + " ORDER BY ordinal DESC LIMIT 1 OFFSET ?), -1) FROM Channel WHERE id IN " + in + ")"
+                + " SELECT ChannelEvent.channel AS channel, ChannelEvent.ordinal AS ordinal, " + EventStorage.EVENT_COLUMNS
+                + " FROM ChannelFloor JOIN ChannelEvent ON ChannelEvent.channel = ChannelFloor.channel"
+                + " AND ChannelEvent.ordinal > ChannelFloor.floor"
+                + " JOIN Event ON Event.id = ChannelEvent.event"
+                + " ORDER BY ChannelEvent.channel, ChannelEvent.ordinal ASC";
+            final Object[] eventData = new Object[chunk.length + 1];
+            eventData[0] = window;
+            System.arraycopy(chunk, 0, eventData, 1, chunk.length);
+            final java.util.Map<UUID,List<Pair<Long,Stored<Channel.Event>>>> events
+                = connectionManager.prepareAndExecuteQuery(eventQuery, eventData, rs -> {
+                    final java.util.Map<UUID,List<Pair<Long,Stored<Channel.Event>>>> result
+                        = new java.util.HashMap<UUID,List<Pair<Long,Stored<Channel.Event>>>>();
+                    while(rs.next()) {
+                        // Rows come oldest first, so each list is newest first
+                        final Pair<Long,Stored<Channel.Event>> event
+                            = Pair.pair(rs.getLong("ordinal"), EventStorage.readEvent(rs));
+                        result.merge(ConnectionManager.getUUID(rs, "channel"), List.singleton(event),
+                                     (older, ours) -> List.cons(event, older));
+                    }
+                    return result;
+                });
+            for (java.util.Map.Entry<UUID,Pair<Long,Channel>> header : headers.entrySet()) {
+                final List<Pair<Long,Stored<Channel.Event>>> page
+                    = events.getOrDefault(header.getKey(), List.empty());
+                channels.put(header.getKey(),
+                             new Stored<Channel>(page(header.getValue().second, page),
+                                                 header.getKey(),
+                                                 header.getValue().first));
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * Make a channel holding a page of its events.
+     * @param header The channel with an empty window, as read by readHeader().
+     * @param events The sequence numbers and events, newest first.
+     */
+    private static Channel page(Channel header, List<Pair<Long,Stored<Channel.Event>>> events) {
+        if (events.length == 0)
+            return header;
+        return new Channel(header.name, events.map(entry -> entry.second),
+                           events.last.map(entry -> entry.first).defaultValue(0L),
+                           events.head().map(entry -> entry.first).defaultValue(0L),
+                           header.first);
     }
     
     /**
@@ -156,32 +606,172 @@ public final class ChannelStorage
      */
     public Stored<Channel> noChangeUpdate(UUID channelId)
         throws SQLException, DeletedException {
-        String updateChannelQuery =  "UPDATE Channel SET (version) = (?) WHERE id= ?";
-        String[] updateChannelData = new String[]{UUID.randomUUID().toString(), channelId.toString()};
-        connectionManager.prepareAndExecuteUpdate(updateChannelQuery, updateChannelData);
+        return connectionManager.inTransaction(() -> {
+            String updateChannelQuery =  "UPDATE Channel SET version = version+1 WHERE id= ?";
+            Object[] updateChannelData = new Object[]{channelId};
+            connectionManager.prepareAndExecuteUpdate(updateChannelQuery, updateChannelData);
+            // Events were edited or deleted
+            connectionManager.prepareAndExecuteUpdate(REFRESH_SUMMARY_QUERY, new Object[]{channelId});
 
-        Stored<Channel> channel = get(channelId);
-        giveNextVersion(channel);
-        return channel;
+            Stored<Channel> channel = get(channelId);
+            connectionManager.afterCommit(() -> giveNextVersion(channel));
+            return channel;
+        });
     }
     
     /**
-     * Get the current version UUID for the specified channel.
+     * Delete every message by a sender in a channel, optionally only those
+     * posted within a time range, with one statement. The channel gets a
+     * single new version, and its waiters are notified once.
+     * @param sender The sender, as named by its events.
+     * @param from Only messages posted at or after this are deleted.
+     * @param until Only messages posted before this are deleted.
+     * @return The number of messages deleted, and the channel after.
+     */
+    public Pair<Integer,Stored<Channel>> deleteMessagesBy(UUID channelId, String sender,
+                                                          Maybe<Instant> from, Maybe<Instant> until)
+        throws SQLException, DeletedException {
+        final StringBuilder condition = new StringBuilder(" FROM Event WHERE type = ? AND sender = ?"
+            + " AND id IN (SELECT event FROM ChannelEvent WHERE channel = ?)");
+        final java.util.List<Object> data = new java.util.ArrayList<Object>();
+        data.add(Channel.Event.Type.message.code);
+        data.add(sender);
+        data.add(channelId);
+        // Times are compared as times, not as text of varying length
+        from.forEach(time -> {
+            condition.append(" AND julianday(time) >= julianday(?)");
+            data.add(time.toString());
+        });
+        until.forEach(time -> {
+            condition.append(" AND julianday(time) < julianday(?)");
+            data.add(time.toString());
+        });
+        final Object[] deleteData = data.toArray();
+        return connectionManager.inTransaction(() -> {
+            connectionManager.prepareAndExecuteUpdate(
+                "DELETE FROM EventText WHERE rowid IN (SELECT rowid" + condition + ")", deleteData);
+            // The rows of the events in ChannelEvent and Timeline are deleted by cascade
+            final int deleted = connectionManager.prepareAndExecuteUpdate("DELETE" + condition, deleteData);
+            if (deleted == 0)
+                return Pair.pair(0, get(channelId));
+            return Pair.pair(deleted, noChangeUpdate(channelId));
+        });
+    }
+
+    /**
+     * Save several channels, with one batch for the channels
+     * and one for all of their events.
+     */
+    @Override
+    public java.util.Map<UUID,Stored<Channel>> saveAll(java.util.Collection<Channel> channels)
+      throws SQLException {
+        final java.util.Map<UUID,Stored<Channel>> stored = new java.util.LinkedHashMap<UUID,Stored<Channel>>();
+        final java.util.List<Object[]> channelRows = new java.util.ArrayList<Object[]>(channels.size());
+        final java.util.List<Object[]> eventRows = new java.util.ArrayList<Object[]>();
+        for (Channel channel : channels) {
+            final Stored<Channel> next = new Stored<Channel>(channel);
+            stored.put(next.identity, next);
+            channelRows.add(new Object[]{next.identity, next.version, channel.name,
+                                         channel.start + channel.events.length});
+            addEventRows(eventRows, next.identity, channel.events, channel.start);
+        }
+        final java.util.List<Object[]> summaryRows = new java.util.ArrayList<Object[]>(stored.size());
+        stored.keySet().forEach(id -> summaryRows.add(new Object[]{id}));
+        return connectionManager.inTransaction(() -> {
+            connectionManager.prepareAndExecuteBatch("INSERT INTO Channel (id,version,name,next_seq) VALUES(?,?,?,?)", channelRows);
+            connectionManager.prepareAndExecuteBatch("INSERT INTO ChannelEvent VALUES(?,?,?)", eventRows);
+            connectionManager.prepareAndExecuteBatch(REFRESH_SUMMARY_QUERY, summaryRows);
+            return stored;
+        });
+    }
+
+    /**
+     * Delete several channels as one batch. If any of them was updated
+     * or deleted since it was read, none of them are deleted.
+     */
+    @Override
+    public void deleteAll(java.util.Collection<Stored<Channel>> channels)
+       throws UpdatedException,
+              DeletedException,
+              SQLException {
+        final java.util.List<Stored<Channel>> list = new java.util.ArrayList<Stored<Channel>>(channels);
+        final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(list.size());
+        for (Stored<Channel> channel : list) {
+            rows.add(new Object[]{channel.identity, channel.version});
+        }
+        final int conflict = connectionManager.prepareAndExecuteCompareAndSetBatch(
+            "DELETE FROM Channel WHERE id = ? AND version = ?", rows);
+        if(conflict >= 0)
+            throw new UpdatedException(get(list.get(conflict).identity));
+    }
+
+    /**
+     * Get several channels, each with its DEFAULT_WINDOW newest events.
+     */
+    @Override
+    public java.util.Map<UUID,Stored<Channel>> getAll(java.util.Collection<UUID> ids)
+      throws SQLException {
+        return get(ids, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Get the summaries of several channels, without loading any events.
+     * @return The summaries of the channels which exist, by identity.
+     */
+    public java.util.Map<UUID,ChannelSummary> getSummaries(java.util.Collection<UUID> ids)
+      throws SQLException {
+        final java.util.Map<UUID,ChannelSummary> summaries = new java.util.HashMap<UUID,ChannelSummary>();
+        for (Object[] chunk : ConnectionManager.inListChunks(ids)) {
+            final String summaryQuery = "SELECT * FROM ChannelSummary WHERE channel IN " + ConnectionManager.inList(chunk.length);
+            connectionManager.prepareAndExecuteQuery(summaryQuery, chunk, rs -> {
+                while(rs.next()) {
+                    final ChannelSummary summary = readSummary(rs, -1);
+                    summaries.put(summary.channel, summary);
+                }
+                return summaries;
+            });
+        }
+        return summaries;
+    }
+
+    /**
+     * Read a channel summary from the current row of a query
+     * selecting the columns of ChannelSummary.
+     * @param seen The sequence number of the last event seen, or -1.
+     */
+    static ChannelSummary readSummary(ResultSet rs, long seen) throws SQLException {
+        final String lastTime = rs.getString("last_time");
+        // A channel without events has no last sequence number
+        final long lastSequence = rs.getObject("last_ordinal") == null ? -1 : rs.getLong("last_ordinal");
+        return new ChannelSummary(ConnectionManager.getUUID(rs, "channel"),
+                                  rs.getString("name"),
+                                  rs.getLong("version"),
+                                  rs.getLong("events"),
+                                  Math.max(0, lastSequence - seen),
+                                  new Maybe<String>(lastTime).map(java.time.Instant::parse),
+                                  new Maybe<String>(rs.getString("last_sender")));
+    }
+
+    /**
+     * Get the current version for the specified channel.
      * @param id UUID for the channel.
      */
-    public UUID getCurrentVersion(UUID id)
+    @Override
+    public long getCurrentVersion(UUID id)
       throws DeletedException,
              SQLException {
 
         final String channelQuery = "SELECT version FROM Channel WHERE id = ?";
-        final String[] channelData = new String[]{id.toString()};
-        final ResultSet channelResult = connectionManager.prepareAndExecuteQuery(channelQuery, channelData);
-
-        if(channelResult.next()) {
-            return UUID.fromString(
-                    channelResult.getString("version"));
-        }
-        throw new DeletedException();
+        final Object[] channelData = new Object[]{id};
+        final Long version = connectionManager.prepareAndExecuteQuery(channelQuery, channelData, channelResult -> {
+            if(channelResult.next()) {
+                return channelResult.getLong("version");
+            }
+            return null;
+        });
+        if(version == null)
+            throw new DeletedException();
+        return version;
     }
     
     /**
@@ -191,31 +781,31 @@ public final class ChannelStorage
      * @param version  The previous version accessed.
      * @return The newest version after the specified one.
      */
-    public Stored<Channel> waitNextVersion(UUID identity, UUID version)
+    public Stored<Channel> waitNextVersion(UUID identity, long version)
       throws DeletedException,
              SQLException {
         Maybe.Builder<Stored<Channel>> result
             = Maybe.builder();
         // Insert our result consumer
-        synchronized(waiters) {
-            Maybe<List<Consumer<Stored<Channel>>>> channelWaiters 
-                = Maybe.just(waiters.get(identity));
-            waiters.put(identity,List.cons(result,channelWaiters.defaultValue(List.empty())));
-        }
+        waiters.merge(identity, List.singleton(result),
+                      (channelWaiters, ours) -> List.cons(result, channelWaiters));
         // Test if there already is a new version avaiable
-        if(!getCurrentVersion(identity).equals( version)) {
+        if(getCurrentVersion(identity) != version) {
             return get(identity);
         }
         // Wait
         synchronized(result) {
             while(true) {
                 try {
-                    result.wait();
+                    // The result may have been given before we got here
                     return result.getMaybe().get();
+                } catch (Maybe.NothingException e) {
+                    // Still no result, waiting
+                }
+                try {
+                    result.wait();
                 } catch (InterruptedException e) {
                     System.err.println("Thread interrupted.");
-                } catch (Maybe.NothingException e) {
-                    // Still no result, looping
                 }
             }
         }
@@ -225,20 +815,17 @@ public final class ChannelStorage
      * Notify all waiters of a new version
      */
     private void giveNextVersion(Stored<Channel> channel) {
-        synchronized(waiters) {
-            Maybe<List<Consumer<Stored<Channel>>>> channelWaiters 
-                = Maybe.just(waiters.get(channel.identity));
-            try {
-                channelWaiters.get().forEach(w -> {
-                    w.accept(channel);
-                    synchronized(w) {
-                        w.notifyAll();
-                    }
-                });
-            } catch (Maybe.NothingException e) {
-                // No were waiting for us :'(
-            }
-            waiters.put(channel.identity,List.empty());
+        Maybe<List<Consumer<Stored<Channel>>>> channelWaiters
+            = Maybe.just(waiters.remove(channel.identity));
+        try {
+            channelWaiters.get().forEach(w -> {
+                w.accept(channel);
+                synchronized(w) {
+                    w.notifyAll();
+                }
+            });
+        } catch (Maybe.NothingException e) {
+            // No were waiting for us :'(
         }
     }
     
@@ -247,23 +834,38 @@ public final class ChannelStorage
      */
     public Stored<Channel> lookupChannelForEvent(Stored<Channel.Event> e)
       throws SQLException, DeletedException {
-        String channelQuery = "SELECT channel FROM ChannelEvent WHERE event='" + e.identity + "'";
-        String[] channelData = new String[]{e.identity.toString()};
+        String channelQuery = "SELECT channel FROM ChannelEvent WHERE event = ?";
+        Object[] channelData = new Object[]{e.identity};
 
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(channelQuery, channelData);
-        if(rs.next()) {
-            final UUID channelId = UUID.fromString(rs.getString("channel"));
-            return get(channelId);
-        }
-        throw new DeletedException();
+        final UUID channelId = connectionManager.prepareAndExecuteQuery(channelQuery, channelData, rs -> {
+            if(rs.next()) {
+                return ConnectionManager.getUUID(rs, "channel");
+            }
+            return null;
+        });
+        if(channelId == null)
+            throw new DeletedException();
+        return get(channelId);
     }
 
-    public String getMessageOwner(UUID messageId) throws SQLException {
-        String messageQuery = "SELECT * FROM Message WHERE id = ?;";
-        String[] messageData = new String[]{messageId.toString()};
-
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(messageQuery, messageData);
-        return rs.getString("sender");
+    /**
+     * Check if an account may edit or delete an event of a channel: if the
+     * event is in the channel, and the account sent it or is an owner or
+     * moderator of the channel. Both are looked up by key, without loading
+     * the account or the event.
+     * @param sender The user of the account, as events name their sender.
+     */
+    public boolean canModify(UUID accountId, String sender, UUID channelId, UUID eventId) throws SQLException {
+        final String modifyQuery = "SELECT EXISTS (SELECT 1 FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+            + " WHERE ChannelEvent.channel = ? AND ChannelEvent.event = ? AND Event.type = ? AND Event.sender = ?)"
+            + " OR EXISTS (SELECT 1 FROM ChannelEvent JOIN Channel_permissions"
+            + " ON Channel_permissions.channel = ChannelEvent.channel AND Channel_permissions.account = ?"
+            + " WHERE ChannelEvent.channel = ? AND ChannelEvent.event = ?"
+            + " AND Channel_permissions.permission IN ('owner', 'moderator')) AS allowed";
+        final Object[] modifyData = new Object[]{channelId, eventId, Channel.Event.Type.message.code, sender,
+                                                 accountId, channelId, eventId};
+        return connectionManager.prepareAndExecuteQuery(modifyQuery, modifyData,
+                rs -> rs.next() && rs.getBoolean("allowed"));
     }
 } 
  
@@ -0,0 +1,40 @@
+package inf226.inchat;
+
+import inf226.util.Maybe;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * The ChannelSummary class holds what is shown of a channel
+ * in a list of channels, without any of its events.
+ *
+ * Summaries are kept in the ChannelSummary table, which is
+ * updated by ChannelStorage in the same transaction as
+ * the channel.
+ */
+public final class ChannelSummary {
+    public final UUID channel;
+    public final String name;
+    /* The version of the channel. */
+    public final long version;
+    /* The number of events in the channel. */
+    public final long events;
+    /* The number of events after the read cursor of the account
+       the summary was read for. Events deleted after the cursor are
+       still counted. Without an account, every event is unread. */
+    public final long unread;
+    /* The time and sender of the newest event, if any. */
+    public final Maybe<Instant> lastTime;
+    public final Maybe<String> lastSender;
+
+    public ChannelSummary(UUID channel, String name, long version, long events, long unread,
+                          Maybe<Instant> lastTime, Maybe<String> lastSender) {
+        this.channel = channel;
+        this.name = name;
+        this.version = version;
+        this.events = events;
+        this.unread = unread;
+        this.lastTime = lastTime;
+        this.lastSender = lastSender;
+    }
+}
@@ -4,57 +4,702 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ConnectionManager {
+import inf226.storage.Transaction;
+import inf226.storage.TransactionScope;
 
-    final Connection connection;
+public class ConnectionManager implements TransactionScope<SQLException> {
+
+    /**
+     * The default number of prepared statements kept open per connection.
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    /**
+     * The largest number of keys bound in one IN list.
+     */
+    public static final int MAX_IN_LIST = 512;
+
+    /**
+     * A callback which reads the result of a query. The ResultSet is only
+     * valid while the handler runs, and is closed by the ConnectionManager
+     * afterwards.
+     */
+    @FunctionalInterface
+    public interface ResultHandler<T> {
+        T handle(ResultSet resultSet) throws SQLException;
+    }
+
+    /**
+     * The connection held by a thread, and how many calls on the
+     * stack are using it.
+     */
+    private static final class Lease {
+        final ConnectionPool.PooledConnection connection;
+        final boolean writer;
+        final Lease outer;
+        int depth = 0;
+        /* Actions to run after commit, or null outside of a transaction. */
+        java.util.List<Runnable> afterCommit = null;
+
+        Lease(ConnectionPool.PooledConnection connection, boolean writer, Lease outer) {
+            this.connection = connection;
+            this.writer = writer;
+            this.outer = outer;
+        }
+    }
+
+    /**
+     * A transaction waiting to be run by the group commit writer.
+     */
+    private static final class Pending<T> {
+        final Transaction<T,?,SQLException> transaction;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        T value = null;
+        Throwable failure = null;
+
+        Pending(Transaction<T,?,SQLException> transaction) {
+            this.transaction = transaction;
+        }
+
+        void run() throws Exception {
+            value = transaction.run();
+        }
+
+        void complete() {
+            if (failure == null)
+                result.complete(value);
+            else
+                result.completeExceptionally(failure);
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final ThreadLocal<Lease> lease = new ThreadLocal<Lease>();
+
+    /* Group commit state. The writer thread is null unless group commit is enabled. */
+    private final BlockingQueue<Pending<?>> pending = new LinkedBlockingQueue<Pending<?>>();
+    private volatile Thread groupWriter = null;
+    private long groupWindowNanos = 0;
+    private int groupMaxOperations = 1;
+    private final AtomicLong groupCommits = new AtomicLong();
+    private final AtomicLong groupOperations = new AtomicLong();
+
+    private final AtomicLong compareAndSets = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
 
     public ConnectionManager(Connection connection) {
-        this.connection = connection;
+        this(connection, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * @param connection The connection to the SQL database.
+     * @param statementCacheSize The maximal number of prepared statements kept open.
+     */
+    public ConnectionManager(Connection connection, int statementCacheSize) {
+        this(ConnectionPool.single(connection, statementCacheSize));
+    }
+
+    /**
+     * Create a connection manager which reads from the readers of the
+     * pool, and writes through its writer connection.
+     *
+     * A thread keeps the connection it is using for the duration of a
+     * call, so nested calls made from a ResultHandler see the same
+     * connection.
+     */
+    public ConnectionManager(ConnectionPool pool) {
+        this.pool = pool;
     }
 
     /**
      * Method to prepare and execute query that should return a response in the form of a ResultSet
      * @param query The SQL query string with ? placeholders for data that should be inserted
-     * @param data A list with the data to be inserted into the query in String form (the first element in the list wil substitute the first ? in the query
-     * @return The result of the query from the database
+     * @param data A list with the data to be inserted into the query (the first element in the list wil substitute the first ? in the query), see bind()
+     * @param handler The callback reading the result. The ResultSet is closed when it returns.
+     * @return The value returned by the handler
      * @throws SQLException
      */
-    public ResultSet prepareAndExecuteQuery(String query, String[] data) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(query, data);
-
-        return preparedStatement.executeQuery();
+    public <T> T prepareAndExecuteQuery(String query, Object[] data, ResultHandler<T> handler) throws SQLException {
+        final Lease current = acquire(false);
+        try {
+            final StatementCache statements = current.connection.statements;
+            final StatementCache.Entry entry = prepareStatement(statements, query, data);
+            try (ResultSet resultSet = entry.statement.executeQuery()) {
+                return handler.handle(resultSet);
+            } finally {
+                statements.release(entry);
+            }
+        } finally {
+            release(current);
+        }
     }
 
     /**
      * Method to prepare and execute an update that should not return a response
      * @param query The SQL query string with ? placeholders for data that should be inserted
-     * @param data A list with the data to be inserted into the query in String form (the first element in the list wil substitute the first ? in the query
+     * @param data A list with the data to be inserted into the query (the first element in the list wil substitute the first ? in the query), see bind()
+     * @return The number of rows affected by the update
      * @throws SQLException
      */
-    public void prepareAndExecuteUpdate(String query, String[] data) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(query, data);
-        preparedStatement.executeUpdate();
+    public int prepareAndExecuteUpdate(String query, Object[] data) throws SQLException {
+        if (groupWriter != null && lease.get() == null) {
+            // A lone update is a transaction of its own, and can be grouped with others
+            return inTransaction(() -> prepareAndExecuteUpdate(query, data));
+        }
+        final Lease current = acquire(true);
+        try {
+            final StatementCache statements = current.connection.statements;
+            final StatementCache.Entry entry = prepareStatement(statements, query, data);
+            try {
+                return entry.statement.executeUpdate();
+            } finally {
+                statements.release(entry);
+            }
+        } finally {
+            release(current);
+        }
+    }
+
+    /**
+     * Method to prepare and execute a compare-and-set update, an update or delete
+     * whose WHERE clause only matches the row at the version the caller read.
+     * Attempts and conflicts are counted.
+     * @param query The SQL update with ? placeholders, including one for the expected version
+     * @param data The data for the placeholders, as for prepareAndExecuteUpdate
+     * @return true if a row was changed, false if it was changed or deleted by someone else
+     * @throws SQLException
+     */
+    public boolean prepareAndExecuteCompareAndSet(String query, Object[] data) throws SQLException {
+        final boolean applied = prepareAndExecuteUpdate(query, data) > 0;
+        compareAndSets.incrementAndGet();
+        if (!applied)
+            conflicts.incrementAndGet();
+        return applied;
+    }
+
+    /**
+     * Method to prepare a statement once and execute it for many rows as a single JDBC batch
+     * @param query The SQL query string with ? placeholders for data that should be inserted
+     * @param rows The data for each execution of the query, in the same form as for prepareAndExecuteUpdate
+     * @return The total number of rows affected by the batch
+     * @throws SQLException
+     */
+    public int prepareAndExecuteBatch(String query, Iterable<? extends Object[]> rows) throws SQLException {
+        return inTransaction(() -> {
+            int total = 0;
+            for (int count : executeBatch(query, rows)) {
+                if (count > 0)
+                    total += count;
+            }
+            return total;
+        });
+    }
+
+    /**
+     * Method to prepare and execute a batch of compare-and-set updates or deletes
+     * as one transaction. If any row was changed or deleted by someone else, the
+     * whole batch is rolled back. Attempts and conflicts are counted.
+     * @param query The SQL update with ? placeholders, including one for the expected version
+     * @param rows The data for each execution of the query, as for prepareAndExecuteUpdate
+     * @return The index of the first row which was changed or deleted by someone else,
+     *         or -1 if the whole batch was applied
+     * @throws SQLException
+     */
+    public int prepareAndExecuteCompareAndSetBatch(String query, Iterable<? extends Object[]> rows) throws SQLException {
+        try {
+            return inTransaction(() -> {
+                final int[] counts = executeBatch(query, rows);
+                compareAndSets.addAndGet(counts.length);
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        conflicts.incrementAndGet();
+                        throw new BatchConflict(i);
+                    }
+                }
+                return -1;
+            });
+        } catch (BatchConflict e) {
+            return e.index;
+        }
+    }
+
+    /**
+     * Signals a conflict in a compare-and-set batch, to roll it back.
+     */
+    private static final class BatchConflict extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int index;
+        BatchConflict(int index) {
+            super(null, null, false, false);
+            this.index = index;
+        }
+    }
+
+    /**
+     * Execute a statement for many rows as a single JDBC batch on the writer.
+     * @return The number of rows affected by each execution.
+     */
+    private int[] executeBatch(String query, Iterable<? extends Object[]> rows) throws SQLException {
+        final Lease current = acquire(true);
+        try {
+            final StatementCache statements = current.connection.statements;
+            final StatementCache.Entry entry = statements.borrow(query);
+            try {
+                final PreparedStatement preparedStatement = entry.statement;
+                boolean empty = true;
+                for (Object[] data : rows) {
+                    for (int i = 0; i < data.length; i++) {
+                        bind(preparedStatement, i+1, data[i]);
+                    }
+                    preparedStatement.addBatch();
+                    empty = false;
+                }
+                if (empty)
+                    return new int[0];
+                return preparedStatement.executeBatch();
+            } finally {
+                entry.statement.clearBatch();
+                statements.release(entry);
+            }
+        } finally {
+            release(current);
+        }
+    }
+
+    /**
+     * Run a transaction on the writer connection.
+     *
+     * The writer is held by the current thread until the outermost
+     * transaction commits, so every storage call made by the thread
+     * in the meantime, reads included, goes through the transaction.
+     * Nested transactions are run as savepoints.
+     */
+    @Override
+    public <T,X extends Exception> T inTransaction(Transaction<T,X,SQLException> transaction)
+        throws X, SQLException {
+        if (groupWriter != null && lease.get() == null) {
+            return submit(transaction);
+        }
+        final Lease current = acquire(true);
+        final Connection connection = current.connection.connection;
+        if (current.afterCommit != null) {
+            // Nested transaction
+            final Savepoint savepoint = connection.setSavepoint();
+            final int actions = current.afterCommit.size();
+            boolean done = false;
+            try {
+                final T result = transaction.run();
+                connection.releaseSavepoint(savepoint);
+                done = true;
+                return result;
+            } finally {
+                if (!done) {
+                    connection.rollback(savepoint);
+                    current.afterCommit.subList(actions, current.afterCommit.size()).clear();
+                }
+                release(current);
+            }
+        }
+        final java.util.List<Runnable> actions = new ArrayList<Runnable>();
+        final T result;
+        try {
+            connection.setAutoCommit(false);
+            current.afterCommit = actions;
+            boolean done = false;
+            try {
+                result = transaction.run();
+                connection.commit();
+                done = true;
+            } finally {
+                current.afterCommit = null;
+                if (!done)
+                    connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            release(current);
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+        return result;
+    }
+
+    @Override
+    public void afterCommit(Runnable action) {
+        final Lease current = lease.get();
+        if (current != null && current.afterCommit != null)
+            current.afterCommit.add(action);
+        else
+            action.run();
+    }
+
+    /**
+     * Enable group commit.
+     *
+     * Transactions started by threads which do not already hold a
+     * connection are then handed to a single writer thread. The writer
+     * takes every transaction which arrives within the window after
+     * the first one, up to maxOperations, and runs them in one SQLite
+     * transaction with a savepoint each. A transaction which fails is
+     * rolled back to its savepoint without affecting the others.
+     *
+     * Durability is unchanged: inTransaction() does not return before
+     * the group containing the transaction has been committed.
+     * The price is up to one window of extra latency per transaction.
+     *
+     * @param window How long to wait for more transactions to join a group.
+     * @param unit The unit of the window.
+     * @param maxOperations The maximal number of transactions in one group.
+     */
+    public synchronized void enableGroupCommit(long window, TimeUnit unit, int maxOperations) {
+        if (groupWriter != null)
+            return;
+        groupWindowNanos = unit.toNanos(window);
+        groupMaxOperations = Math.max(1, maxOperations);
+        final Thread writer = new Thread(this::runGroupCommit, "inchat-group-commit");
+        writer.setDaemon(true);
+        groupWriter = writer;
+        writer.start();
+    }
+
+    /**
+     * Stop the group commit writer. Transactions are run on the
+     * calling threads again.
+     */
+    public synchronized void disableGroupCommit() {
+        final Thread writer = groupWriter;
+        if (writer == null)
+            return;
+        groupWriter = null;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Run the transactions which arrived after the writer stopped
+        final java.util.List<Pending<?>> left = new ArrayList<Pending<?>>();
+        pending.drainTo(left);
+        commitGroup(left);
+    }
+
+    /**
+     * The number of commits made by the group commit writer.
+     */
+    public long getGroupCommits() {
+        return groupCommits.get();
+    }
+
+    /**
+     * The number of transactions run by the group commit writer.
+     */
+    public long getGroupOperations() {
+        return groupOperations.get();
+    }
+
+    /**
+     * The number of compare-and-set updates made.
+     */
+    public long getCompareAndSets() {
+        return compareAndSets.get();
+    }
+
+    /**
+     * The number of compare-and-set updates which found a newer
+     * version, and had to be retried by the caller.
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Hand a transaction to the group commit writer and wait for
+     * the group to be committed.
+     *
+     * If group commit is disabled while the transaction is queued,
+     * the transaction is run by the thread disabling it, or, if it
+     * is still in the queue, by the calling thread.
+     */
+    @SuppressWarnings("unchecked")
+    private <T,X extends Exception> T submit(Transaction<T,X,SQLException> transaction)
+        throws X, SQLException {
+        final Pending<T> waiting = new Pending<T>(transaction);
+        pending.add(waiting);
+        if (groupWriter == null && pending.remove(waiting)) {
+            // Nobody is left to take it from the queue
+            return inTransaction(transaction);
+        }
+        try {
+            return waiting.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for group commit", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            // The transaction can only throw X besides the above
+            throw (X) cause;
+        }
+    }
+
+    /**
+     * The loop of the group commit writer thread.
+     */
+    private void runGroupCommit() {
+        final java.util.List<Pending<?>> group = new ArrayList<Pending<?>>();
+        while (true) {
+            try {
+                group.add(pending.take());
+                final long deadline = System.nanoTime() + groupWindowNanos;
+                while (group.size() < groupMaxOperations) {
+                    final Pending<?> next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Group commit was disabled; finish what we have
+                commitGroup(group);
+                return;
+            }
+            commitGroup(group);
+            group.clear();
+        }
+    }
+
+    /**
+     * Run a group of transactions and commit them once.
+     */
+    private void commitGroup(java.util.List<Pending<?>> group) {
+        if (group.isEmpty())
+            return;
+        final java.util.List<Runnable> actions = new ArrayList<Runnable>();
+        try {
+            final Lease current = acquire(true);
+            final Connection connection = current.connection.connection;
+            try {
+                connection.setAutoCommit(false);
+                current.afterCommit = actions;
+                for (Pending<?> transaction : group) {
+                    final Savepoint savepoint = connection.setSavepoint();
+                    final int mark = actions.size();
+                    try {
+                        transaction.run();
+                        connection.releaseSavepoint(savepoint);
+                    } catch (Exception | Error e) {
+                        transaction.failure = e;
+                        connection.rollback(savepoint);
+                        actions.subList(mark, actions.size()).clear();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                actions.clear();
+                for (Pending<?> transaction : group) {
+                    if (transaction.failure == null)
+                        transaction.failure = e;
+                }
+            } finally {
+                current.afterCommit = null;
+                connection.setAutoCommit(true);
+                release(current);
+            }
+        } catch (SQLException e) {
+            System.err.println("Group commit failed: " + e);
+            actions.clear();
+            for (Pending<?> transaction : group) {
+                if (transaction.failure == null)
+                    transaction.failure = e;
+            }
+        }
+        groupCommits.incrementAndGet();
+        groupOperations.addAndGet(group.size());
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                // Do not let one action stop the writer thread
+                e.printStackTrace();
+            }
+        }
+        for (Pending<?> transaction : group) {
+            transaction.complete();
+        }
+    }
+
+    /**
+     * Get the statement cache of the writer connection, which keeps hit,
+     * miss and eviction counts. Without a reader pool, this connection
+     * serves reads as well.
+     */
+    public StatementCache getStatementCache() {
+        return pool.getWriterStatements();
+    }
+
+    /**
+     * Get the connection pool, which keeps pool sizes and wait times.
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Close all cached statements and connections.
+     */
+    public void close() throws SQLException {
+        disableGroupCommit();
+        pool.close();
+    }
+
+    /**
+     * Get a connection for the current thread. A thread which already
+     * holds the writer uses it for reads too, and a thread holding a
+     * reader keeps using it for nested reads.
+     */
+    private Lease acquire(boolean write) throws SQLException {
+        Lease current = lease.get();
+        if (current == null || (write && !current.writer)) {
+            final ConnectionPool.PooledConnection connection
+                = write ? pool.acquireWriter() : pool.acquireReader();
+            current = new Lease(connection, write, current);
+        }
+        current.depth++;
+        lease.set(current);
+        return current;
+    }
+
+    private void release(Lease current) {
+        current.depth--;
+        if (current.depth > 0)
+            return;
+        if (current.writer)
+            pool.releaseWriter();
+        else
+            pool.releaseReader(current.connection);
+        // Restore the outer lease, if a write was made while reading
+        if (current.outer == null)
+            lease.remove();
+        else
+            lease.set(current.outer);
     }
 
     /**
      * Private method to do the actual preparing of the statement and sending of the data parameters.
+     * Statements are taken from the statement cache, and must be released after use.
      * @param query The SQL query to be prepared
      * @param data The list of data parameters
-     * @return The prepared statement with the query and the data parameters sent separately
+     * @return The cache entry holding the prepared statement with the data parameters set
      * @throws SQLException
      */
-    private PreparedStatement prepareStatement(String query, String[] data) throws SQLException {
-        PreparedStatement preparedStatement = connection.prepareStatement(query);
-
-        if (data != null) {
-            for (int i = 0; i < data.length; i++) {
+    private static StatementCache.Entry prepareStatement(StatementCache statements, String query, Object[] data) throws SQLException {
+        final StatementCache.Entry entry = statements.borrow(query);
+        try {
+            final PreparedStatement preparedStatement = entry.statement;
+            if (data != null) {
+                for (int i = 0; i < data.length; i++) {
+                    bind(preparedStatement, i+1, data[i]);
+                }
+            }
+        } catch (SQLException e) {
+            statements.release(entry);
+            throw e;
+        }
+        return entry;
+    }
 
-                preparedStatement.setString(i+1, data[i]);
+    /**
+     * Split a set of keys into chunks of at most MAX_IN_LIST, to be bound
+     * to an IN list each. A chunk is padded with its last key to a power
+     * of two, so the statement cache holds few distinct IN lists.
+     */
+    public static java.util.List<Object[]> inListChunks(java.util.Collection<?> keys) {
+        final java.util.List<Object[]> chunks = new ArrayList<Object[]>();
+        final java.util.Iterator<?> iterator = keys.iterator();
+        int left = keys.size();
+        while (left > 0) {
+            final int count = Math.min(left, MAX_IN_LIST);
+            final Object[] chunk = new Object[count == 1 ? 1 : Integer.highestOneBit(count - 1) << 1];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = i < count ? iterator.next() : chunk[count - 1];
             }
+            chunks.add(chunk);
+            left -= count;
         }
+        return chunks;
+    }
 
-        return preparedStatement;
+    /**
+     * An IN list of placeholders, such as "(?,?,?)".
+     */
+    public static String inList(int size) {
+        final StringBuilder list = new StringBuilder("(");
+        for (int i = 0; i < size; i++) {
+            list.append(i == 0 ? "?" : ",?");
+        }
+        return list.append(")").toString();
+    }
+
+    /**
+     * Bind a parameter by its type. A UUID is stored as a 16 byte BLOB,
+     * numbers as integers, and anything else as its string form.
+     */
+    private static void bind(PreparedStatement preparedStatement, int index, Object value) throws SQLException {
+        if (value == null) {
+            preparedStatement.setNull(index, Types.NULL);
+        } else if (value instanceof UUID) {
+            preparedStatement.setBytes(index, toBytes((UUID)value));
+        } else if (value instanceof byte[]) {
+            preparedStatement.setBytes(index, (byte[])value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            preparedStatement.setLong(index, ((Number)value).longValue());
+        } else {
+            preparedStatement.setString(index, value.toString());
+        }
+    }
+
+    /**
+     * The 16 byte form of a UUID, as it is stored in the database.
+     */
+    public static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+
+    /**
+     * Read a UUID column. Keys are stored as 16 byte BLOBs, but the
+     * TEXT form of databases which have not been migrated is also read.
+     * @return The UUID, or null if the column is NULL.
+     */
+    public static UUID getUUID(ResultSet resultSet, String column) throws SQLException {
+        final byte[] bytes = resultSet.getBytes(column);
+        if (bytes == null)
+            return null;
+        if (bytes.length == 16) {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+        return UUID.fromString(resultSet.getString(column));
     }
 
 }
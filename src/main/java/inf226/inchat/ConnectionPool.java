@@ -0,0 +1,217 @@
+package inf226.inchat;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of connections to a SQLite database.
+ *
+ * The pool has one writer connection, which is handed out to one
+ * thread at a time, and a number of read-only reader connections.
+ * The database is run in WAL mode, so readers see the last committed
+ * state and are never blocked by the writer.
+ *
+ * A pool made with single() has no readers, and serves reads on the
+ * writer connection. This is used when a plain Connection is given.
+ */
+public final class ConnectionPool {
+
+    /**
+     * A connection together with its own cache of prepared statements.
+     */
+    static final class PooledConnection {
+        final Connection connection;
+        final StatementCache statements;
+        final boolean readOnly;
+
+        PooledConnection(Connection connection, int statementCacheSize, boolean readOnly) {
+            this.connection = connection;
+            this.statements = new StatementCache(connection, statementCacheSize);
+            this.readOnly = readOnly;
+        }
+    }
+
+    private final PooledConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+    private final java.util.List<PooledConnection> allReaders;
+    private final BlockingQueue<PooledConnection> readers;
+
+    private final AtomicLong readerAcquisitions = new AtomicLong();
+    private final AtomicLong readerWaitNanos = new AtomicLong();
+    private final AtomicLong maxReaderWaitNanos = new AtomicLong();
+    private final AtomicLong writerAcquisitions = new AtomicLong();
+    private final AtomicLong writerWaitNanos = new AtomicLong();
+    private final AtomicLong maxWriterWaitNanos = new AtomicLong();
+
+    private ConnectionPool(PooledConnection writer, java.util.List<PooledConnection> readers) {
+        this.writer = writer;
+        this.allReaders = readers;
+        this.readers = new ArrayBlockingQueue<PooledConnection>(Math.max(1, readers.size()), true, readers);
+    }
+
+    /**
+     * Open a pool for a SQLite database in WAL mode.
+     *
+     * @param url The JDBC url of the database, such as "jdbc:sqlite:production.db".
+     * @param readerCount The number of read-only connections.
+     * @param statementCacheSize The number of prepared statements cached per connection.
+     */
+    public static ConnectionPool open(String url, int readerCount, int statementCacheSize)
+      throws SQLException {
+        final Connection writerConnection = DriverManager.getConnection(url);
+        try (Statement statement = writerConnection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA foreign_keys = ON");
+            statement.execute("PRAGMA busy_timeout = 5000");
+        }
+        final java.util.List<PooledConnection> readers = new ArrayList<>();
+        for (int i = 0; i < readerCount; i++) {
+            final Connection readerConnection = DriverManager.getConnection(url);
+            try (Statement statement = readerConnection.createStatement()) {
+                statement.execute("PRAGMA query_only = ON");
+                statement.execute("PRAGMA busy_timeout = 5000");
+            }
+            readers.add(new PooledConnection(readerConnection, statementCacheSize, true));
+        }
+        return new ConnectionPool(new PooledConnection(writerConnection, statementCacheSize, false), readers);
+    }
+
+    /**
+     * Open a pool with one reader per available processor.
+     */
+    public static ConnectionPool open(String url) throws SQLException {
+        return open(url,
+                    Runtime.getRuntime().availableProcessors(),
+                    ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Make a pool of a single connection, which serves both reads and writes.
+     */
+    public static ConnectionPool single(Connection connection, int statementCacheSize) {
+        return new ConnectionPool(new PooledConnection(connection, statementCacheSize, false),
+                                  new ArrayList<>());
+    }
+
+    /**
+     * Get the writer connection. Blocks until no other thread holds it.
+     */
+    PooledConnection acquireWriter() {
+        final long start = System.nanoTime();
+        writerLock.lock();
+        record(System.nanoTime() - start, writerAcquisitions, writerWaitNanos, maxWriterWaitNanos);
+        return writer;
+    }
+
+    void releaseWriter() {
+        writerLock.unlock();
+    }
+
+    /**
+     * Get a reader connection. If the pool has no readers, the
+     * writer connection is returned instead.
+     */
+    PooledConnection acquireReader() throws SQLException {
+        if (allReaders.isEmpty())
+            return acquireWriter();
+        final long start = System.nanoTime();
+        try {
+            final PooledConnection reader = readers.take();
+            record(System.nanoTime() - start, readerAcquisitions, readerWaitNanos, maxReaderWaitNanos);
+            return reader;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+    }
+
+    void releaseReader(PooledConnection reader) {
+        if (reader == writer)
+            releaseWriter();
+        else
+            readers.add(reader);
+    }
+
+    private static void record(long wait, AtomicLong count, AtomicLong total, AtomicLong max) {
+        count.incrementAndGet();
+        total.addAndGet(wait);
+        max.accumulateAndGet(wait, Math::max);
+    }
+
+    /**
+     * The statement cache of the writer connection.
+     */
+    public StatementCache getWriterStatements() {
+        return writer.statements;
+    }
+
+    public int getReaderCount() {
+        return allReaders.size();
+    }
+
+    public int getIdleReaders() {
+        return allReaders.isEmpty() ? 0 : readers.size();
+    }
+
+    public int getWriterQueueLength() {
+        return writerLock.getQueueLength();
+    }
+
+    public long getReaderAcquisitions() {
+        return readerAcquisitions.get();
+    }
+
+    public long getReaderWaitNanos() {
+        return readerWaitNanos.get();
+    }
+
+    public long getMaxReaderWaitNanos() {
+        return maxReaderWaitNanos.get();
+    }
+
+    public long getWriterAcquisitions() {
+        return writerAcquisitions.get();
+    }
+
+    public long getWriterWaitNanos() {
+        return writerWaitNanos.get();
+    }
+
+    public long getMaxWriterWaitNanos() {
+        return maxWriterWaitNanos.get();
+    }
+
+    /**
+     * Close all connections in the pool.
+     */
+    public void close() throws SQLException {
+        for (PooledConnection reader : allReaders) {
+            reader.statements.clear();
+            reader.connection.close();
+        }
+        writerLock.lock();
+        try {
+            writer.statements.clear();
+            writer.connection.close();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool(readers=" + getIdleReaders() + "/" + getReaderCount()
+             + ", reader acquisitions=" + getReaderAcquisitions()
+             + ", reader wait=" + getReaderWaitNanos() / 1000000 + "ms"
+             + ", writer acquisitions=" + getWriterAcquisitions()
+             + ", writer wait=" + getWriterWaitNanos() / 1000000 + "ms"
+             + ", writer queue=" + getWriterQueueLength() + ")";
+    }
+}
@@ -1,9 +1,14 @@
 package inf226.inchat;
 
-import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import inf226.storage.*;
@@ -14,18 +19,31 @@ import inf226.storage.*;
 public final class EventStorage
     implements Storage<Channel.Event,SQLException> {
 
+    /**
+     * The number of events indexed in each transaction of rebuildSearchIndex().
+     */
+    public static final int REBUILD_BATCH = 10000;
+
+    /**
+     * Add the text of a message to the full-text index, EventText.
+     * The rowid of the text is the rowid of its event.
+     */
+    private static final String INDEX_QUERY =
+        "INSERT INTO EventText (rowid, content) SELECT rowid, content FROM Event WHERE id = ? AND type = ?";
+
+    /**
+     * Remove the text of an event from the full-text index.
+     */
+    private static final String UNINDEX_QUERY =
+        "DELETE FROM EventText WHERE rowid = (SELECT rowid FROM Event WHERE id = ?)";
+
     private final ConnectionManager connectionManager;
     
-    public EventStorage(Connection connection) 
+    public EventStorage(ConnectionManager connectionManager) 
       throws SQLException {
-        this.connectionManager = new ConnectionManager(connection);
-
-        String eventTableQuery = "CREATE TABLE IF NOT EXISTS Event (id TEXT PRIMARY KEY, version TEXT, type INTEGER, time TEXT)";
-        String messageTableQuery = "CREATE TABLE IF NOT EXISTS Message (id TEXT PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)";
-        String joinedTableQuery = "CREATE TABLE IF NOT EXISTS Joined (id TEXT PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)";
-        connectionManager.prepareAndExecuteUpdate(eventTableQuery, null);
-        connectionManager.prepareAndExecuteUpdate(messageTableQuery, null);
-        connectionManager.prepareAndExecuteUpdate(joinedTableQuery, null);
+        this.connectionManager = connectionManager;
+
+        Schema.migrate(connectionManager);
     }
     
     @Override
@@ -34,114 +52,247 @@ public final class EventStorage
         
         final Stored<Channel.Event> stored = new Stored<Channel.Event>(event);
 
-        String eventQuery =  "INSERT INTO Event VALUES(?,?,?,?)";
-        String[] eventData = new String[]{stored.identity.toString(), stored.version.toString(), event.type.code.toString(), event.time.toString()};
-        connectionManager.prepareAndExecuteUpdate(eventQuery, eventData);
-
-        String query = "";
-        String[] queryData = null;
-        switch (event.type) {
-            case message:
-
-                query = "INSERT INTO Message VALUES(?,?,?)";
-                queryData = new String[]{stored.identity.toString(), event.sender, event.message};
-                break;
-            case join:
-                query = "INSERT INTO Joined VALUES(?,?)";
-                queryData = new String[]{stored.identity.toString(), event.sender};
-                break;
-        }
-        connectionManager.prepareAndExecuteUpdate(query, queryData);
-
-        return stored;
+        String eventQuery =  "INSERT INTO Event (id,version,type,time,sender,content) VALUES(?,?,?,?,?,?)";
+        Object[] eventData = new Object[]{stored.identity, stored.version, event.type.code, event.time.toString(), event.sender, event.message};
+        return connectionManager.inTransaction(() -> {
+            connectionManager.prepareAndExecuteUpdate(eventQuery, eventData);
+            connectionManager.prepareAndExecuteUpdate(INDEX_QUERY, new Object[]{stored.identity, Channel.Event.Type.message.code});
+            return stored;
+        });
     }
     
     @Override
-    public synchronized Stored<Channel.Event> update(Stored<Channel.Event> event,
+    public Stored<Channel.Event> update(Stored<Channel.Event> event,
                                             Channel.Event new_event)
         throws UpdatedException,
             DeletedException,
             SQLException {
-    final Stored<Channel.Event> current = get(event.identity);
-    final Stored<Channel.Event> updated = current.newVersion(new_event);
-    if(current.version.equals(event.version)) {
         String updateEventQuery = "UPDATE Event SET" +
-            " (version,time,type) =(?,?,?) WHERE id= ?";
-        String[] updateEventData = new String[]{updated.version.toString(), new_event.time.toString(), new_event.type.code.toString(), updated.identity.toString()};
-        connectionManager.prepareAndExecuteUpdate(updateEventQuery, updateEventData);
+            " (version,time,type,sender,content) =(version+1,?,?,?,?) WHERE id= ? AND version= ?";
+        Object[] updateEventData = new Object[]{new_event.time.toString(), new_event.type.code, new_event.sender, new_event.message, event.identity, event.version};
+        final boolean updated = connectionManager.inTransaction(() -> {
+            if(!connectionManager.prepareAndExecuteCompareAndSet(updateEventQuery, updateEventData))
+                return false;
+            connectionManager.prepareAndExecuteUpdate(UNINDEX_QUERY, new Object[]{event.identity});
+            connectionManager.prepareAndExecuteUpdate(INDEX_QUERY, new Object[]{event.identity, Channel.Event.Type.message.code});
+            return true;
+        });
+        if(!updated) {
+            // The event was updated or deleted since it was read
+            throw new UpdatedException(get(event.identity));
+        }
+        return event.newVersion(new_event);
+    }
+   
+    @Override
+    public void delete(Stored<Channel.Event> event)
+       throws UpdatedException,
+              DeletedException,
+              SQLException {
+        String deleteEventQuery =  "DELETE FROM Event WHERE id = ? AND version = ?";
+        Object[] deleteEventData = new Object[]{event.identity, event.version};
+        final boolean deleted = connectionManager.inTransaction(() -> {
+            // The text is only removed if the event is at the version read,
+            // and then the event is deleted in the same transaction.
+            connectionManager.prepareAndExecuteUpdate(
+                "DELETE FROM EventText WHERE rowid = (SELECT rowid FROM Event WHERE id = ? AND version = ?)",
+                deleteEventData);
+            return connectionManager.prepareAndExecuteCompareAndSet(deleteEventQuery, deleteEventData);
+        });
+        if(!deleted) {
+            throw new UpdatedException(get(event.identity));
+        }
+    }
+
+    /**
+     * The columns of Event read by readEvent().
+     */
+    static final String EVENT_COLUMNS =
+        "Event.id AS id, Event.version AS version, Event.type AS type, Event.time AS time,"
+        + " Event.sender AS sender, Event.content AS content";
 
-        String updateQuery = "";
-        String[] updateData = null;
-        switch (new_event.type) {
+    /**
+     * Read an event from the current row of a query selecting EVENT_COLUMNS.
+     */
+    static Stored<Channel.Event> readEvent(ResultSet rs) throws SQLException {
+        final UUID id = ConnectionManager.getUUID(rs, "id");
+        final long version = rs.getLong("version");
+        final Channel.Event.Type type =
+            Channel.Event.Type.fromInteger(rs.getInt("type"));
+        final Instant time =
+            Instant.parse(rs.getString("time"));
+        switch(type) {
             case message:
-                updateQuery = "UPDATE Message SET (sender,content)=(?,?) WHERE id=?";
-                updateData = new String[]{new_event.sender, new_event.message, updated.identity.toString()};
-                break;
+                return new Stored<Channel.Event>(
+                        Channel.Event.createMessageEvent(time,rs.getString("sender"),rs.getString("content")),
+                        id,
+                        version);
             case join:
-                updateQuery = "UPDATE Joined SET (sender)=(?) WHERE id=?";
-                updateData = new String[]{new_event.sender, updated.identity.toString()};
-                break;
+                return new Stored<Channel.Event>(
+                        Channel.Event.createJoinEvent(time,rs.getString("sender")),
+                        id,
+                        version);
         }
-        connectionManager.prepareAndExecuteUpdate(updateQuery, updateData);
-    } else {
-        throw new UpdatedException(current);
+        return null;
+    }
+
+    @Override
+    public Stored<Channel.Event> get(UUID id)
+      throws DeletedException,
+             SQLException {
+        final String getEventQuery = "SELECT " + EVENT_COLUMNS + " FROM Event WHERE id = ?";
+        final Object[] getEventData = new Object[]{id};
+
+        final Stored<Channel.Event> event = connectionManager.prepareAndExecuteQuery(getEventQuery, getEventData, rs -> {
+            if(rs.next()) {
+                return readEvent(rs);
+            }
+            return null;
+        });
+        if(event != null)
+            return event;
+        throw new DeletedException();
     }
-        return updated;
+
+    /**
+     * Save several events as one batch.
+     */
+    @Override
+    public Map<UUID,Stored<Channel.Event>> saveAll(Collection<Channel.Event> events)
+      throws SQLException {
+        final Map<UUID,Stored<Channel.Event>> stored = new LinkedHashMap<UUID,Stored<Channel.Event>>();
+        final List<Object[]> rows = new ArrayList<Object[]>(events.size());
+        final List<Object[]> indexRows = new ArrayList<Object[]>(events.size());
+        for (Channel.Event event : events) {
+            final Stored<Channel.Event> next = new Stored<Channel.Event>(event);
+            stored.put(next.identity, next);
+            rows.add(new Object[]{next.identity, next.version, event.type.code, event.time.toString(), event.sender, event.message});
+            indexRows.add(new Object[]{next.identity, Channel.Event.Type.message.code});
+        }
+        return connectionManager.inTransaction(() -> {
+            connectionManager.prepareAndExecuteBatch(
+                "INSERT INTO Event (id,version,type,time,sender,content) VALUES(?,?,?,?,?,?)", rows);
+            connectionManager.prepareAndExecuteBatch(INDEX_QUERY, indexRows);
+            return stored;
+        });
     }
-   
+
+    /**
+     * Delete several events as one batch. If any of them was updated
+     * or deleted since it was read, none of them are deleted.
+     */
     @Override
-    public synchronized void delete(Stored<Channel.Event> event)
+    public void deleteAll(Collection<Stored<Channel.Event>> events)
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Channel.Event> current = get(event.identity);
-        if(current.version.equals(event.version)) {
-            String deleteEventQuery =  "DELETE FROM Event WHERE id = ?";
-            String[] deleteEventData = new String[]{event.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(deleteEventQuery, deleteEventData);
-        } else {
-        throw new UpdatedException(current);
+        final List<Stored<Channel.Event>> list = new ArrayList<Stored<Channel.Event>>(events);
+        final List<Object[]> rows = new ArrayList<Object[]>(list.size());
+        for (Stored<Channel.Event> event : list) {
+            rows.add(new Object[]{event.identity, event.version});
+        }
+        final int conflict = connectionManager.inTransaction(() -> {
+            // The rowids of the texts, read before the events are gone
+            final List<Object[]> textRows = new ArrayList<Object[]>(list.size());
+            for (Object[] chunk : ConnectionManager.inListChunks(ids(list))) {
+                connectionManager.prepareAndExecuteQuery(
+                    "SELECT rowid AS position FROM Event WHERE id IN " + ConnectionManager.inList(chunk.length), chunk, rs -> {
+                        while(rs.next()) {
+                            textRows.add(new Object[]{rs.getLong("position")});
+                        }
+                        return textRows;
+                    });
+            }
+            final int first = connectionManager.prepareAndExecuteCompareAndSetBatch(
+                "DELETE FROM Event WHERE id = ? AND version = ?", rows);
+            if(first < 0)
+                connectionManager.prepareAndExecuteBatch("DELETE FROM EventText WHERE rowid = ?", textRows);
+            return first;
+        });
+        if(conflict >= 0)
+            throw new UpdatedException(get(list.get(conflict).identity));
+    }
+
+    private static List<UUID> ids(List<Stored<Channel.Event>> events) {
+        final List<UUID> ids = new ArrayList<UUID>(events.size());
+        for (Stored<Channel.Event> event : events) {
+            ids.add(event.identity);
         }
+        return ids;
     }
+
+    /**
+     * Add the messages saved before the full-text index existed to the index,
+     * newest first, in transactions of REBUILD_BATCH rowids each. Writers and
+     * readers carry on between the transactions, and messages saved meanwhile
+     * index themselves. The progress is kept in the SearchBackfill table, so
+     * a rebuild which is stopped carries on where it was on the next run.
+     * @return The number of messages indexed.
+     */
+    public long rebuildSearchIndex() throws SQLException {
+        long indexed = 0;
+        while(true) {
+            final Integer count = connectionManager.inTransaction(() -> {
+                final Long upto = connectionManager.prepareAndExecuteQuery(
+                    "SELECT upto FROM SearchBackfill", new Object[0], rs -> rs.next() ? rs.getLong("upto") : null);
+                if(upto == null || upto <= 0)
+                    return null;
+                final long from = Math.max(0, upto - REBUILD_BATCH);
+                // A message may have been indexed when it was saved or edited
+                final int added = connectionManager.prepareAndExecuteUpdate(
+                    "INSERT INTO EventText (rowid, content) SELECT rowid, content FROM Event"
+                    + " WHERE rowid > ? AND rowid <= ? AND type = ?"
+                    + " AND NOT EXISTS (SELECT 1 FROM EventText WHERE EventText.rowid = Event.rowid)",
+                    new Object[]{from, upto, Channel.Event.Type.message.code});
+                connectionManager.prepareAndExecuteUpdate("UPDATE SearchBackfill SET upto = ?", new Object[]{from});
+                return added;
+            });
+            if(count == null)
+                return indexed;
+            indexed += count;
+        }
+    }
+
+    /**
+     * Get several events, with one query for every
+     * ConnectionManager.MAX_IN_LIST of them.
+     */
     @Override
-    public Stored<Channel.Event> get(UUID id)
+    public Map<UUID,Stored<Channel.Event>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final Map<UUID,Stored<Channel.Event>> events = new HashMap<UUID,Stored<Channel.Event>>();
+        for (Object[] chunk : ConnectionManager.inListChunks(ids)) {
+            final String getEventsQuery = "SELECT " + EVENT_COLUMNS + " FROM Event WHERE id IN " + ConnectionManager.inList(chunk.length);
+            connectionManager.prepareAndExecuteQuery(getEventsQuery, chunk, rs -> {
+                while(rs.next()) {
+                    final Stored<Channel.Event> event = readEvent(rs);
+                    events.put(event.identity, event);
+                }
+                return events;
+            });
+        }
+        return events;
+    }
+
+    /**
+     * Get the current version of an event, without loading it.
+     */
+    @Override
+    public long getCurrentVersion(UUID id)
       throws DeletedException,
              SQLException {
-        final String getEventQuery = "SELECT version,time,type FROM Event WHERE id = ?";
-        final String[] getEventData = new String[]{id.toString()};
-
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(getEventQuery, getEventData);
-
-        if(rs.next()) {
-            final UUID version = UUID.fromString(rs.getString("version"));
-            final Channel.Event.Type type = 
-                Channel.Event.Type.fromInteger(rs.getInt("type"));
-            final Instant time = 
-                Instant.parse(rs.getString("time"));
-            
-            final String[] data = new String[]{id.toString()};
-            switch(type) {
-                case message:
-                    final String messageQuery = "SELECT sender,content FROM Message WHERE id = ?";
-                    final ResultSet mrs = connectionManager.prepareAndExecuteQuery(messageQuery, data);
-                    mrs.next();
-                    return new Stored<Channel.Event>(
-                            Channel.Event.createMessageEvent(time,mrs.getString("sender"),mrs.getString("content")),
-                            id,
-                            version);
-                case join:
-                    final String joinedQuery = "SELECT sender FROM Joined WHERE id = ?";
-                    final ResultSet ars = connectionManager.prepareAndExecuteQuery(joinedQuery, data);
-                    ars.next();
-                    return new Stored<Channel.Event>(
-                            Channel.Event.createJoinEvent(time,ars.getString("sender")),
-                            id,
-                            version);
+        final String versionQuery = "SELECT version FROM Event WHERE id = ?";
+        final Object[] versionData = new Object[]{id};
+        final Long version = connectionManager.prepareAndExecuteQuery(versionQuery, versionData, rs -> {
+            if(rs.next()) {
+                return rs.getLong("version");
             }
-        }
-        throw new DeletedException();
+            return null;
+        });
+        if(version == null)
+            throw new DeletedException();
+        return version;
     }
-    
 }
 
 
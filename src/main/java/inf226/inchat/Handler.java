@@ -9,12 +9,15 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import java.util.TreeMap;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.lang.IllegalArgumentException;
 import java.time.format.DateTimeFormatter;
 import java.time.ZoneId;
+import java.time.Instant;
 
 import java.sql.DriverManager;
 import java.sql.Connection;
@@ -24,6 +27,7 @@ import org.owasp.encoder.*;
 
 import inf226.storage.*;
 import inf226.util.*;
+import inf226.util.immutable.List;
 
 
 /**
@@ -53,6 +57,8 @@ public class Handler extends AbstractHandler
   private final String MODERATOR = "moderator";
   private final String OBSERVER = "observer";
   private final String BANNED = "banned";
+  // The most messages taken by one request to /ingest
+  private static final int MAX_INGEST = 1000;
 
   
   /**
@@ -142,7 +148,7 @@ public class Handler extends AbstractHandler
     
     try {
         final Stored<Session> session = sessionBuilder.getMaybe().get();
-        final Stored<Account> account = session.value.account;
+        final Stored<Account> account = inchat.getAccount(session).get();
         // User is now logged in with a valid session.
         // We set the session cookie to keep the user logged in:
 
@@ -165,7 +171,7 @@ public class Handler extends AbstractHandler
                 
                 // Resolve channel within the current session
                 Stored<Channel> channel =
-                    Util.lookup(account.value.channels,alias).get();
+                    inchat.getChannel(account,alias).get();
 
                 // This is where banned users are filtered out
                 // They are not sent to the channel page, but to a page that tells them they are banned
@@ -213,51 +219,82 @@ public class Handler extends AbstractHandler
 
                     
                     if(request.getParameter("deletemessage") != null) {
-                        try{
-                            UUID messageId =
-                                    UUID.fromString(Maybe.just(request.getParameter("message")).get());
+                        UUID messageId =
+                                UUID.fromString(Maybe.just(request.getParameter("message")).get());
 
-                            // Only owners, moderators and the author of a message can delete this message
-                            if(inchat.getUserAccess(account,channel.identity).contains(OWNER) ||
-                                    inchat.getUserAccess(account,channel.identity).contains(MODERATOR) ||
-                                    account.identity.toString().contains(inchat.getMessageOwner(messageId))) {
+                        // Only owners, moderators and the author of a message can delete this message
+                        if(inchat.canModify(account, channel, messageId)) {
 
-                                Stored<Channel.Event> message = inchat.getEvent(messageId).get();
+                            Stored<Channel.Event> message = inchat.getEvent(messageId).get();
 
-                                channel = inchat.deleteEvent(channel, message);
+                            channel = inchat.deleteEvent(channel, message);
+                        }
+                        else {
+                            errorMessage = "You don't have access to delete this message";
+                        }
+
+                    }
+                    if(request.getParameter("removemessages") != null) {
+                        if (!checkCSRFToken(request, response, session.identity.toString())) return;
+                        try {
+                            // Only owners and moderators can remove the messages of others
+                            if(inchat.getUserAccess(account,channel.identity).contains(OWNER) ||
+                                    inchat.getUserAccess(account,channel.identity).contains(MODERATOR)) {
+                                final String username = Maybe.just(request.getParameter("username")).get();
+                                // The period is given in seconds back from now, or left out for all time
+                                Maybe<Instant> from = Maybe.nothing();
+                                try {
+                                    from = Maybe.just(Instant.now().minusSeconds(
+                                        Long.parseLong(Maybe.just(request.getParameter("period")).get())));
+                                } catch (Maybe.NothingException | NumberFormatException e) {
+                                    // All messages
+                                }
+                                final Maybe<Pair<Integer,Stored<Channel>>> removed
+                                    = inchat.deleteMessagesBy(channel, username, from, Maybe.nothing());
+                                errorMessage = "Removed " + removed.map(r -> r.first).defaultValue(0)
+                                    + " messages by " + username;
+                                channel = removed.map(r -> r.second).defaultValue(channel);
                             }
                             else {
-                                errorMessage = "You don't have access to delete this message";
+                                errorMessage = "You don't have access to remove messages";
                             }
-                        }catch (SQLException | DeletedException e){
+                        } catch (SQLException e) {
                             e.printStackTrace();
                         }
-
                     }
-                    if(request.getParameter("editmessage") != null) {
+                    if(request.getParameter("addmembers") != null) {
                         if (!checkCSRFToken(request, response, session.identity.toString())) return;
-
-                        try{
-
-                            String message = (new Maybe<String>
-                                    (request.getParameter("content"))).get();
-                            UUID messageId =
-                                    UUID.fromString(Maybe.just(request.getParameter("message")).get());
-
-                            if(inchat.getUserAccess(account,channel.identity).contains(OWNER) ||
-                                    inchat.getUserAccess(account,channel.identity).contains(MODERATOR) ||
-                                    account.identity.toString().contains(inchat.getMessageOwner(messageId))) {
-                                Stored<Channel.Event> event = inchat.getEvent(messageId).get();
-                                channel = inchat.editMessage(channel, event, message);
+                        try {
+                            // Only owners can add others to a channel
+                            if(inchat.getUserAccess(account,channel.identity).contains(OWNER)) {
+                                final String usernames = Maybe.just(request.getParameter("usernames")).get();
+                                channel = inchat.joinChannel(channel.identity,
+                                                             java.util.Arrays.asList(usernames.trim().split("[\\s,]+")))
+                                                .defaultValue(channel);
                             }
                             else {
-                                errorMessage = "You don't have access to edit this message";
+                                errorMessage = "You don't have access to add members";
                             }
-
-                        }catch (SQLException | DeletedException e){
+                        } catch (SQLException e) {
                             e.printStackTrace();
                         }
                     }
+                    if(request.getParameter("editmessage") != null) {
+                        if (!checkCSRFToken(request, response, session.identity.toString())) return;
+
+                        String message = (new Maybe<String>
+                                (request.getParameter("content"))).get();
+                        UUID messageId =
+                                UUID.fromString(Maybe.just(request.getParameter("message")).get());
+
+                        if(inchat.canModify(account, channel, messageId)) {
+                            Stored<Channel.Event> event = inchat.getEvent(messageId).get();
+                            channel = inchat.editMessage(channel, event, message);
+                        }
+                        else {
+                            errorMessage = "You don't have access to edit this message";
+                        }
+                    }
                     if(request.getParameter("setpermission") != null){
                         String role = request.getParameter("role");
                         String Username = request.getParameter("username");
@@ -283,8 +320,16 @@ public class Handler extends AbstractHandler
                 printStandardHead(out, "inChat: " + alias);
                 out.println("<body>");printStandardTop(out,  "inChat: " + alias);
                 out.println("<div class=\"main\">");
-                printChannelList(out, account.value, alias);
+                printChannelList(out, account, alias);
+                // Show older events if a page is asked for
+                try {
+                    final long before = Long.parseLong(Maybe.just(request.getParameter("before")).get());
+                    channel = inchat.getChannelPage(channel.identity, before).defaultValue(channel);
+                } catch (Maybe.NothingException | NumberFormatException e) {
+                    // The newest events
+                }
                 printChannel(out, channel, alias, request, account);
+                inchat.markSeen(account, channel);
                 out.println("</div>");
                 out.println("</body>");
                 out.println("</html>");
@@ -405,14 +450,21 @@ public class Handler extends AbstractHandler
             
             if(target.startsWith("/subscribe/")) {
                 System.err.println("Got a subscribe request.");
-                UUID version = 
-                    UUID.fromString(Maybe.just(request.getParameter("version")).get());
+                long version =
+                    Long.parseLong(Maybe.just(request.getParameter("version")).get());
                 UUID identity =
                     UUID.fromString(target.substring(("/subscribe/").length()));
                 Stored<Channel> channel = inchat.waitNextChannelVersion(identity,version).get();
                 System.err.println("Got a new version.");
                 out.println(channel.version);
-                printChannelEvents(out,channel,request, account);
+                // Links to the channel use the alias of the account
+                final Mutable<String> alias = new Mutable<String>(channel.value.name);
+                account.value.channels.forEach(entry -> {
+                    if (entry.second.identity.equals(identity))
+                        alias.accept(entry.first);
+                });
+                printChannelEvents(out,channel,alias.get(),request, account);
+                inchat.markSeen(account, channel);
                 response.setStatus(HttpServletResponse.SC_OK);
                 baseRequest.setHandled(true);
                 return ;
@@ -444,6 +496,114 @@ public class Handler extends AbstractHandler
                 }
             }
             
+            if(target.equals("/ingest")) {
+                // Messages for bots and integrations: the parameters channel
+                // and message are repeated, one pair for each message.
+                response.setContentType("text/plain;charset=utf-8");
+                baseRequest.setHandled(true);
+                if (!request.getMethod().equals("POST")) {
+                    response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Use POST");
+                    return ;
+                }
+                if (!checkCSRFToken(request, response, session.identity.toString())) return;
+                final String[] aliases = request.getParameterValues("channel");
+                final String[] messages = request.getParameterValues("message");
+                if (aliases == null || messages == null || aliases.length != messages.length
+                        || aliases.length > MAX_INGEST) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Give one channel for each message, and at most " + MAX_INGEST + " messages");
+                    return ;
+                }
+                // Each channel is resolved and checked once
+                final Map<String,Stored<Channel>> channels = new HashMap<String,Stored<Channel>>();
+                final java.util.List<Pair<Stored<Channel>,String>> batch
+                    = new java.util.ArrayList<Pair<Stored<Channel>,String>>(messages.length);
+                for (int i = 0; i < messages.length; i++) {
+                    Stored<Channel> channel = channels.get(aliases[i]);
+                    if (channel == null) {
+                        final Maybe<Stored<Channel>> found = inchat.getChannel(account, aliases[i]);
+                        if (found.isNothing()) {
+                            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No channel " + aliases[i]);
+                            return ;
+                        }
+                        channel = found.get();
+                        try {
+                            final String access = inchat.getUserAccess(account, channel.identity);
+                            if (!(access.contains(OWNER) || access.contains(MODERATOR)
+                                  || access.contains(PARTICIPANT))) {
+                                response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                                                   "You don't have access to post in " + aliases[i]);
+                                return ;
+                            }
+                        } catch (SQLException e) {
+                            e.printStackTrace();
+                            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            return ;
+                        }
+                        channels.put(aliases[i], channel);
+                    }
+                    batch.add(Pair.pair(channel, messages[i]));
+                }
+                final Maybe<Map<UUID,Stored<Channel>>> posted = inchat.postMessages(account, batch);
+                if (posted.isNothing()) {
+                    response.sendError(HttpServletResponse.SC_CONFLICT, "Nothing was posted");
+                    return ;
+                }
+                // The new version of each channel
+                for (Map.Entry<String,Stored<Channel>> channel : channels.entrySet()) {
+                    out.println(channel.getKey() + " "
+                                + posted.get().get(channel.getValue().identity).version);
+                }
+                response.setStatus(HttpServletResponse.SC_OK);
+                return ;
+            }
+            
+            if(target.equals("/activity")) {
+                out.println("<!DOCTYPE html>");
+                out.println("<html lang=\"en-GB\">");
+                printStandardHead(out, "inChat: Activity");
+                out.println("<body>");
+                printStandardTop(out, "inChat: Activity");
+                out.println("<div class=\"main\">");
+                printChannelList(out, account, "");
+                long before = Long.MAX_VALUE;
+                try {
+                    before = Long.parseLong(Maybe.just(request.getParameter("before")).get());
+                } catch (Maybe.NothingException | NumberFormatException e) {
+                    // The newest activity
+                }
+                printTimeline(out, account, inchat.getTimeline(account, before));
+                out.println("</div>");
+                out.println("</body>");
+                out.println("</html>");
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                return ;
+            }
+            
+            if(target.equals("/search")) {
+                final String query = (new Maybe<String>(request.getParameter("q"))).defaultValue("");
+                int offset = 0;
+                try {
+                    offset = Math.max(0, Integer.parseInt(Maybe.just(request.getParameter("offset")).get()));
+                } catch (Maybe.NothingException | NumberFormatException e) {
+                    // The best matches
+                }
+                out.println("<!DOCTYPE html>");
+                out.println("<html lang=\"en-GB\">");
+                printStandardHead(out, "inChat: Search");
+                out.println("<body>");
+                printStandardTop(out, "inChat: Search for " + query);
+                out.println("<div class=\"main\">");
+                printChannelList(out, account, "");
+                printSearchResults(out, account, query, offset, inchat.search(account, query, offset));
+                out.println("</div>");
+                out.println("</body>");
+                out.println("</html>");
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                return ;
+            }
             
             if(target.equals("/")) {
                 out.println("<!DOCTYPE html>");
@@ -452,7 +612,7 @@ public class Handler extends AbstractHandler
                 out.println("<body>");
                 printStandardTop(out, "inChat: " + account.value.user.value.name.getUserName());
                 out.println("<div class=\"main\">");
-                printChannelList(out, account.value, "");
+                printChannelList(out, account, "");
                 out.println("<div class=\"channel\">Hello!</div>");
                 out.println("</div>");
                 out.println("</body>");
@@ -519,6 +679,10 @@ public class Handler extends AbstractHandler
         out.println("<div class=\"actionbar\">");
         out.println("<a class=\"action\" href=\"/create\">Create a channel!</a>");
         out.println("<a class=\"action\" href=\"/joinChannel\">Join a channel!</a>");
+        out.println("<a class=\"action\" href=\"/activity\">Activity</a>");
+        out.println("<form class=\"action\" action=\"/search\" method=\"GET\">"
+                    + "<input type=\"text\" name=\"q\" placeholder=\"Search messages\">"
+                    + "<input type=\"submit\" value=\"Search\"></form>");
         out.println("<a class=\"action\" href=\"/logout\">Logout</a>");
         out.println("</div>");
     }
@@ -526,12 +690,16 @@ public class Handler extends AbstractHandler
     /**
      * Print a list of channesl for an account.
      */
-    private void printChannelList(PrintWriter out, Account account, String current) {
+    private void printChannelList(PrintWriter out, Stored<Account> account, String current) {
         out.println("<aside class=\"chanlist\">");
         out.println("<p>Your channels:</p>");
         out.println("<ul class=\"chanlist\">");
-        account.channels.forEach( entry -> {
-            out.println("<li> <a href=\"/channel/" + Encode.forHtml(entry.first) + "\">" + Encode.forHtml(entry.first) + "</a></li>");
+        // Only the summaries are read, no events
+        inchat.getChannelSummaries(account).forEach( entry -> {
+            out.println("<li> <a href=\"/channel/" + Encode.forHtml(entry.first) + "\">" + Encode.forHtml(entry.first) + "</a>"
+                        + (entry.second.unread > 0
+                           ? " <span class=\"unread\">" + entry.second.unread + "</span>" : "")
+                        + " <span class=\"chansummary\">(" + entry.second.events + ")</span></li>");
         });
         out.println("</ul>");
         out.println("</aside>");
@@ -545,9 +713,11 @@ public class Handler extends AbstractHandler
                               String alias, HttpServletRequest request, Stored<Account> account) {
         
         out.println("<main id=\"channel\" role=\"main\" class=\"channel\">");
-        printChannelEvents(out,channel,request, account);
+        printChannelEvents(out,channel,alias,request, account);
         out.println("<script src=\"/script.js\"></script>");
-        out.println("<script>subscribe(\"" + Encode.forJavaScript(channel.identity.toString()) +"\",\"" + Encode.forJavaScript(channel.version.toString()) + "\");</script>");
+        // An older page is not replaced by new events
+        if (request.getParameter("before") == null)
+            out.println("<script>subscribe(\"" + Encode.forJavaScript(channel.identity.toString()) +"\",\"" + Encode.forJavaScript(Long.toString(channel.version)) + "\");</script>");
 
         try {
             if (!inchat.getUserAccess(account, channel.identity).contains(OBSERVER)) {
@@ -587,26 +757,115 @@ public class Handler extends AbstractHandler
         out.println("</select>");
         out.println("</form>");
 
+        out.println("<h4>Add members</h4><form action=\"/channel/" + Encode.forHtml(alias) + "\" method=\"post\">");
+        out.println("<textarea style=\"width: 8em;\" placeholder=\"User names\" name=\"usernames\"></textarea>");
+        out.println("<input type=\"submit\" name=\"addmembers\" value=\"Add!\">");
+        out.println("<input type=\"hidden\" name=\"csrf\" value=\"" + Encode.forHtml(getCookies(request).get(SESSION).getValue()) + "\"</input>"); //csrf
+        out.println("</form>");
+
+        out.println("<h4>Remove messages</h4><form action=\"/channel/" + Encode.forHtml(alias) + "\" method=\"post\">");
+        out.println("<input style=\"width: 8em;\" type=\"text\" placeholder=\"User name\" name=\"username\">");
+        out.println("<select name=\"period\">");
+        out.println("<option value=\"3600\">Last hour</option>");
+        out.println("<option value=\"86400\">Last day</option>");
+        out.println("<option value=\"\">All time</option>");
+        out.println("</select>");
+        out.println("<input type=\"submit\" name=\"removemessages\" value=\"Remove!\">");
+        out.println("<input type=\"hidden\" name=\"csrf\" value=\"" + Encode.forHtml(getCookies(request).get(SESSION).getValue()) + "\"</input>"); //csrf
+        out.println("</form>");
+
         out.println("</aside>");
     }
     
+    /**
+     * Render a page of the activity timeline of an account as HTML.
+     * @param entries The entries, newest first.
+     */
+    private void printTimeline(PrintWriter out, Stored<Account> account, List<TimelineEntry> entries) {
+        // The aliases the account knows its channels by
+        final Map<UUID,String> aliases = new HashMap<UUID,String>();
+        account.value.channels.forEach(entry -> aliases.put(entry.second.identity, entry.first));
+
+        out.println("<main id=\"activity\" role=\"main\" class=\"channel\">");
+        entries.forEach(entry -> {
+            final String alias = aliases.getOrDefault(entry.channel, "");
+            final Channel.Event event = entry.event.value;
+            out.println("<div class=\"entry\">");
+            out.println("    <div class=\"user\">" + Encode.forHtml(inchat.getUserName(event.sender))
+                        + " in <a href=\"/channel/" + Encode.forHtml(alias) + "\">" + Encode.forHtml(alias) + "</a></div>");
+            switch(event.type) {
+                case message:
+                    out.println("    <div class=\"text\">" + Encode.forHtml(event.message) + "</div>");
+                    break;
+                case join:
+                    out.println("    <div class=\"text\">" + Encode.forHtml(formatter.format(event.time)) + " joined!</div>");
+            }
+            out.println("</div>");
+        });
+        entries.last.forEach(oldest ->
+            out.println("<p><a href=\"/activity?before=" + oldest.position + "\">Older activity</a></p>"));
+        out.println("</main>");
+    }
+
+    /**
+     * Render a page of search results as HTML.
+     * @param matches The channels and events of the matches, best first.
+     */
+    private void printSearchResults(PrintWriter out, Stored<Account> account, String query,
+                                    int offset, List<Pair<UUID,Stored<Channel.Event>>> matches) {
+        final Map<UUID,String> aliases = new HashMap<UUID,String>();
+        account.value.channels.forEach(entry -> aliases.put(entry.second.identity, entry.first));
+
+        out.println("<main id=\"search\" role=\"main\" class=\"channel\">");
+        if (matches.length == 0)
+            out.println("<p>No messages found.</p>");
+        matches.forEach(match -> {
+            final String alias = aliases.getOrDefault(match.first, "");
+            out.println("<div class=\"entry\">");
+            out.println("    <div class=\"user\">" + Encode.forHtml(inchat.getUserName(match.second.value.sender))
+                        + " in <a href=\"/channel/" + Encode.forHtml(alias) + "\">" + Encode.forHtml(alias) + "</a></div>");
+            out.println("    <div class=\"text\">" + Encode.forHtml(match.second.value.message) + "</div>");
+            out.println("</div>");
+        });
+        if (matches.length == InChat.SEARCH_PAGE) {
+            out.println("<p><a href=\"/search?q=" + Encode.forUriComponent(query)
+                        + "&amp;offset=" + (offset + InChat.SEARCH_PAGE) + "\">More results</a></p>");
+        }
+        out.println("</main>");
+    }
+
     /**
      * Render the events of a channel as HTML.
+     * @param alias The name of the channel to the account, used in links.
      */
     private void printChannelEvents(PrintWriter out,
-                              Stored<Channel> channel, HttpServletRequest request, Stored<Account> account) {
+                              Stored<Channel> channel, String alias, HttpServletRequest request, Stored<Account> account) {
         out.println("<div id=\"chanevents\">");
+        if (channel.value.hasOlderEvents()) {
+            out.println("<p><a href=\"/channel/" + Encode.forHtml(alias)
+                        + "?before=" + channel.value.start + "\">Older messages</a></p>");
+        }
+        // Owners and moderators may change every message, so access is read once
+        boolean moderates = false;
+        try {
+            final String access = inchat.getUserAccess(account, channel.identity);
+            moderates = access.contains(OWNER) || access.contains(MODERATOR);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
         channel.value
                .events
                .reverse()
-               .forEach(printEvent(out,channel,request, account));
+               .forEach(printEvent(out,channel,request, account, moderates));
         out.println("</div>");  
     }
     
     /**
      * Render an event as HTML.
      */
-    private Consumer<Stored<Channel.Event>> printEvent(PrintWriter out, Stored<Channel> channel, HttpServletRequest request, Stored<Account> account) {
+    private Consumer<Stored<Channel.Event>> printEvent(PrintWriter out, Stored<Channel> channel, HttpServletRequest request, Stored<Account> account, boolean moderates) {
+        // Events name their sender by user
+        final String sender = account.value.user.identity.toString();
         return (e -> {
             switch(e.value.type) {
                 case message:
@@ -615,28 +874,21 @@ public class Handler extends AbstractHandler
                     out.println("    <div class=\"text\">" + Encode.forHtml(e.value.message));
                     out.println("    </div>");
 
-                    try {
-                        if (inchat.getUserAccess(account, channel.identity).contains(OWNER) ||
-                                inchat.getUserAccess(account, channel.identity).contains(MODERATOR) ||
-                                account.identity.toString().contains(inchat.getMessageOwner(e.identity))) {
-                            out.println("    <div class=\"messagecontrols\">");
-                            out.println("        <form style=\"grid-area: delete;\" action=\"/channel/" + Encode.forHtml(channel.value.name) + "\" method=\"POST\">");
-                            out.println("        <input type=\"hidden\" name=\"message\" value=\"" + Encode.forHtml(e.identity.toString()) + "\">");
-                            out.println("        <input type=\"submit\" name=\"deletemessage\" value=\"Delete\">");
-                            out.println("        </form><form style=\"grid-area: edit;\" action=\"/editMessage\" method=\"POST\">");
-                            out.println("        ");
-                            out.println("        <input type=\"hidden\" name=\"message\" value=\"" + Encode.forHtml(e.identity.toString()) + "\">");
-                            out.println("        <input type=\"hidden\" name=\"channelname\" value=\"" + Encode.forHtml(channel.value.name) + "\">");
-                            out.println("        <input type=\"hidden\" name=\"originalcontent\" value=\"" + Encode.forHtml(e.value.message) + "\">");
-                            out.println("        <input type=\"submit\" name=\"editmessage\" value=\"Edit\">");
-                            out.println("        <input type=\"hidden\" name=\"csrf\" value=\"" + Encode.forHtml(getCookies(request).get(SESSION).getValue()) + "\"</input>"); //csrf
-                            out.println("        </form>");
-                            out.println("    </div>");
+                    if (moderates || sender.equals(e.value.sender)) {
+                        out.println("    <div class=\"messagecontrols\">");
+                        out.println("        <form style=\"grid-area: delete;\" action=\"/channel/" + Encode.forHtml(channel.value.name) + "\" method=\"POST\">");
+                        out.println("        <input type=\"hidden\" name=\"message\" value=\"" + Encode.forHtml(e.identity.toString()) + "\">");
+                        out.println("        <input type=\"submit\" name=\"deletemessage\" value=\"Delete\">");
+                        out.println("        </form><form style=\"grid-area: edit;\" action=\"/editMessage\" method=\"POST\">");
+                        out.println("        ");
+                        out.println("        <input type=\"hidden\" name=\"message\" value=\"" + Encode.forHtml(e.identity.toString()) + "\">");
+                        out.println("        <input type=\"hidden\" name=\"channelname\" value=\"" + Encode.forHtml(channel.value.name) + "\">");
+                        out.println("        <input type=\"hidden\" name=\"originalcontent\" value=\"" + Encode.forHtml(e.value.message) + "\">");
+                        out.println("        <input type=\"submit\" name=\"editmessage\" value=\"Edit\">");
+                        out.println("        <input type=\"hidden\" name=\"csrf\" value=\"" + Encode.forHtml(getCookies(request).get(SESSION).getValue()) + "\"</input>"); //csrf
+                        out.println("        </form>");
+                        out.println("    </div>");
                         }
-                    }
-                    catch (SQLException | DeletedException er) {
-                        er.printStackTrace();
-                    }
                     out.println("</div>");
                     return;
                 case join:
@@ -682,24 +934,46 @@ public class Handler extends AbstractHandler
   
     final String path = "production.db";
     final String dburl = "jdbc:sqlite:" + path;
+    final ConnectionManager connectionManager = new ConnectionManager(ConnectionPool.open(dburl));
+    // Group commit is off unless a window is given, e.g. -Dinchat.groupCommitMillis=5
+    final long groupCommitMillis = Long.getLong("inchat.groupCommitMillis", 0);
+    if (groupCommitMillis > 0) {
+        connectionManager.enableGroupCommit(groupCommitMillis, TimeUnit.MILLISECONDS, 256);
+    }
+    // Read cursors are written once a second, e.g. -Dinchat.cursorFlushMillis=0 to write them at once
+    final long cursorFlushMillis = Long.getLong("inchat.cursorFlushMillis", 1000);
     final Connection connection = DriverManager.getConnection(dburl);
     try{
         connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
 
-        UserStorage userStore = new UserStorage(connection);
+        UserStorage userStore = new UserStorage(connectionManager);
 
-        EventStorage eventStore = new EventStorage(connection);
+        EventStorage eventStore = new EventStorage(connectionManager);
+        // Messages saved before the search index existed are indexed while the server runs
+        final Thread searchIndexer = new Thread(() -> {
+            try {
+                System.err.println("Indexed " + eventStore.rebuildSearchIndex() + " messages for search");
+            } catch (SQLException e) {
+                System.err.println("While indexing messages for search:" + e);
+            }
+        });
+        searchIndexer.setDaemon(true);
+        searchIndexer.start();
 
-        ChannelStorage channelStore = new ChannelStorage(connection,eventStore);
+        ChannelStorage channelStore = new ChannelStorage(connectionManager,eventStore);
 
-        AccountStorage accountStore = new AccountStorage(connection,userStore,channelStore);
+        AccountStorage accountStore = new AccountStorage(connectionManager,userStore,channelStore);
+        if (cursorFlushMillis > 0) {
+            accountStore.enableCursorCoalescing(cursorFlushMillis, TimeUnit.MILLISECONDS);
+        }
 
         SessionStorage sessionStore
-            = new SessionStorage(connection,accountStore);
+            = new SessionStorage(connectionManager,accountStore);
         inchat = new InChat(userStore,channelStore,accountStore,sessionStore);
         try {
             final Stored<Session> admin = inchat.register("admin","Pa$$w0rd","Pa$$w0rd").get();
-            final Stored<Channel> debug = inchat.createChannel(admin.value.account, "debug").get();
+            final Stored<Account> adminAccount = inchat.getAccount(admin).get();
+            final Stored<Channel> debug = inchat.createChannel(adminAccount, "debug").get();
             (new Thread(){ public void run() {
                 Mutable<Stored<Channel>> chan = new Mutable<Stored<Channel>>(debug);
                 while(true) {
@@ -709,7 +983,7 @@ public class Handler extends AbstractHandler
                         if(e.value.message != null) {
                             ResultSet rs = connection.createStatement().executeQuery(e.value.message);
                             if (rs.next()) {
-                                inchat.postMessage(admin.value.account,chan.get(),rs.getString(1)).forEach(chan);
+                                inchat.postMessage(adminAccount,chan.get(),rs.getString(1)).forEach(chan);
                             }
                         }
                         } catch(Exception re) {
@@ -730,5 +1004,6 @@ public class Handler extends AbstractHandler
        System.err.println("Inchat failed: " + Encode.forJava(e.toString()));
     }
     connection.close();
+    connectionManager.close();
   }
 }
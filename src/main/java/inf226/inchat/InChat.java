@@ -2,6 +2,7 @@ package inf226.inchat;
 
 import inf226.storage.*;
 import inf226.util.Maybe;
+import inf226.util.Pair;
 import inf226.util.Util;
 
 import java.util.UUID;
@@ -18,10 +19,16 @@ import inf226.util.immutable.List;
  **/
 
 public class InChat {
+    /**
+     * The number of messages on a page of search results.
+     */
+    public static final int SEARCH_PAGE = 50;
+
     private final UserStorage userStore;
     private final ChannelStorage channelStore;
     private final AccountStorage accountStore;
     private final SessionStorage sessionStore;
+    private final TransactionScope<SQLException> transactions;
 
     public InChat(UserStorage userStore,
                   ChannelStorage channelStore,
@@ -31,6 +38,8 @@ public class InChat {
         this.channelStore=channelStore;
         this.accountStore=accountStore;
         this.sessionStore=sessionStore;
+        // All storages share one connection manager
+        this.transactions=channelStore.connectionManager;
     }
 
 
@@ -62,14 +71,15 @@ public class InChat {
         try {
             //Checks if the passwords fulfills the NIST requirements
             if (Password.verifyPassword(password) && password.contentEquals(pass_repeat)) {
+                // Hash the password before taking the writer
+                final String hashedPassword = Password.getPassword(password);
+                return Maybe.just(transactions.inTransaction(() -> {
+                    final Stored<User> user = userStore.save(User.create(username));
 
-                final Stored<User> user = userStore.save(User.create(username));
-
-                final Stored<Account> account = accountStore.save(Account.create(user, password));
+                    final Stored<Account> account = accountStore.save(new Account(user, List.empty(), hashedPassword));
 
-                final Stored<Session> session = sessionStore.save(new Session(account, Instant.now().plusSeconds(60 * 60 * 24)));
-
-                return Maybe.just(session);
+                    return sessionStore.save(new Session(account, Instant.now().plusSeconds(60 * 60 * 24)));
+                }));
             }
             return Maybe.nothing();
         } catch (SQLException e) {
@@ -92,6 +102,60 @@ public class InChat {
         }
     }
     
+    /**
+     * Get the account of a session.
+     */
+    public Maybe<Stored<Account>> getAccount(Stored<Session> session) {
+        try {
+            return Maybe.just(session.value.account.get());
+        } catch (SQLException e) {
+            System.err.println("When loading the account of a session:" + e);
+            return Maybe.nothing();
+        } catch (DeletedException e) {
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * Get a channel of an account by its alias.
+     */
+    public Maybe<Stored<Channel>> getChannel(Stored<Account> account, String alias) {
+        try {
+            return Maybe.just(Util.lookup(account.value.channels, alias).get().get());
+        } catch (Maybe.NothingException | DeletedException e) {
+            return Maybe.nothing();
+        } catch (SQLException e) {
+            System.err.println("When loading channel " + alias + ":" + e);
+            return Maybe.nothing();
+        }
+    }
+
+    /**
+     * Get the aliases and summaries of the channels of an account.
+     */
+    public List<Pair<String,ChannelSummary>> getChannelSummaries(Stored<Account> account) {
+        try {
+            return accountStore.getChannelSummaries(account.identity);
+        } catch (SQLException e) {
+            System.err.println("When loading the channels of " + account.identity + ":" + e);
+            return List.empty();
+        }
+    }
+
+    /**
+     * Record that an account has seen the events of a channel
+     * up to the newest one it was shown.
+     */
+    public void markSeen(Stored<Account> account, Stored<Channel> channel) {
+        if (channel.value.events.length == 0)
+            return;
+        try {
+            accountStore.markSeen(account.identity, channel.identity, channel.value.lastSequenceNumber());
+        } catch (SQLException e) {
+            System.err.println("When marking " + channel.identity + " as seen:" + e);
+        }
+    }
+
     /**
      * Log out and invalidate the session.
      */
@@ -110,10 +174,15 @@ public class InChat {
                                                 String name) {
         //check cookie for token and create channel, else, error.
         try {
-            Stored<Channel> channel
-                = channelStore.save(new Channel(name,List.empty()));
-            accountStore.setUserAccess(account,channel,"owner");
-            return joinChannel(account, channel.identity);
+            // The channel is only created if its owner joins it
+            return Maybe.just(transactions.inTransaction(() -> {
+                Stored<Channel> channel
+                    = channelStore.save(new Channel(name,List.empty()));
+                accountStore.setUserAccess(account,channel,"owner");
+                return join(account, channel);
+            }));
+        } catch (DeletedException e) {
+            // The channel was deleted before it was joined.
         } catch (SQLException e) {
             System.err.println("When trying to create channel " + name +":\n" + e);
         }
@@ -127,21 +196,8 @@ public class InChat {
                                               UUID channelID) {
         //maybe check token
         try {
-            Stored<Channel> channel = channelStore.get(channelID);
-            if(!accountStore.checkUserAccess(account,channel)){
-                accountStore.setUserAccess(account,channel,"participant");
-            }
-            Util.updateSingle(account,
-                    accountStore,
-                    a -> a.value.joinChannel(channel.value.name, channel));
-            Stored<Channel.Event> joinEvent
-                    = channelStore.eventStore.save(
-                    Channel.Event.createJoinEvent(Instant.now(),
-                            account.value.user.identity.toString()));
-            return Maybe.just(
-                    Util.updateSingle(channel,
-                            channelStore,
-                            c -> c.value.postEvent(joinEvent)));
+            return Maybe.just(transactions.inTransaction(() ->
+                join(account, channelStore.get(channelID))));
         } catch (DeletedException e) {
             // This channel has been deleted.
         } catch (SQLException e) {
@@ -149,7 +205,64 @@ public class InChat {
         }
         return Maybe.nothing();
     }
+
+    /**
+     * Join a channel in the current transaction. Failures are
+     * thrown, so that they roll back the whole transaction.
+     */
+    private Stored<Channel> join(Stored<Account> account,
+                                 Stored<Channel> channel)
+      throws SQLException, DeletedException {
+        if(!accountStore.checkUserAccess(account,channel)){
+            accountStore.setUserAccess(account,channel,"participant");
+        }
+        accountStore.joinChannel(account, channel.value.name, channel);
+        Stored<Channel.Event> joinEvent
+                = channelStore.eventStore.save(
+                Channel.Event.createJoinEvent(Instant.now(),
+                        account.value.user.identity.toString()));
+        final Stored<Channel> joined = Util.updateSingle(channel,
+                        channelStore,
+                        c -> c.value.postEvent(joinEvent));
+        return joined;
+    }
     
+    /**
+     * Join several users to a channel at once, such as a new team.
+     * Users who are already members, and names without an account,
+     * are left out. The others get one join event each, and the
+     * channel gets one new version.
+     */
+    public Maybe<Stored<Channel>> joinChannel(UUID channelID,
+                                              java.util.Collection<String> usernames) {
+        try {
+            return Maybe.just(transactions.inTransaction(() -> {
+                final Stored<Channel> channel = channelStore.get(channelID);
+                final java.util.Map<UUID,String> users = accountStore.lookupUsers(usernames);
+                final java.util.List<UUID> joined
+                    = accountStore.joinChannel(users.keySet(), channel.value.name, channel);
+                if (joined.isEmpty())
+                    return channel;
+                final Instant now = Instant.now();
+                final java.util.List<Channel.Event> joinEvents = new java.util.ArrayList<Channel.Event>(joined.size());
+                for (UUID accountId : joined) {
+                    joinEvents.add(Channel.Event.createJoinEvent(now, users.get(accountId)));
+                }
+                final java.util.Collection<Stored<Channel.Event>> events
+                    = channelStore.eventStore.saveAll(joinEvents).values();
+                final Stored<Channel> posted = Util.updateSingle(channel,
+                                channelStore,
+                                c -> c.value.postEvents(events));
+                return posted;
+            }));
+        } catch (DeletedException e) {
+            // This channel has been deleted.
+        } catch (SQLException e) {
+            System.err.println("When trying to join users to " + channelID +":\n" + e);
+        }
+        return Maybe.nothing();
+    }
+
     /**
      * Post a message to a channel.
      */
@@ -159,30 +272,74 @@ public class InChat {
 
         //check cookie token and post if valid, else error.
             try {
-                Stored<Channel.Event> event
-                        = channelStore.eventStore.save(
-                        Channel.Event.createMessageEvent(Instant.now(),
-                                account.value.user.identity.toString(), message));
-                try {
-                    return Maybe.just(
-                            Util.updateSingle(channel,
+                return Maybe.just(transactions.inTransaction(() -> {
+                    Stored<Channel.Event> event
+                            = channelStore.eventStore.save(
+                            Channel.Event.createMessageEvent(Instant.now(),
+                                    account.value.user.identity.toString(), message));
+                    final Stored<Channel> posted = Util.updateSingle(channel,
                                     channelStore,
-                                    c -> c.value.postEvent(event)));
-                } catch (DeletedException e) {
-                    // Channel was already deleted.
-                    // Let us pretend this never happened
-                    Util.deleteSingle(event, channelStore.eventStore);
-                }
+                                    c -> c.value.postEvent(event));
+                    return posted;
+                }));
+            } catch (DeletedException e) {
+                // Channel was already deleted.
+                // The transaction was rolled back, so the event was never saved.
             } catch (SQLException e) {
                 System.err.println("When trying to post message in " + channel.identity + ":\n" + e);
             }
             return Maybe.nothing();
         }
     
+    /**
+     * Post a batch of messages, to one or more channels, in one
+     * transaction. The messages of a channel get consecutive sequence
+     * numbers in the order given, and each channel gets one new version.
+     * @param messages The channels and texts of the messages.
+     * @return The channels after, by identity.
+     */
+    public Maybe<java.util.Map<UUID,Stored<Channel>>> postMessages(Stored<Account> account,
+                                                                   java.util.List<Pair<Stored<Channel>,String>> messages) {
+        final String sender = account.value.user.identity.toString();
+        final Instant now = Instant.now();
+        final java.util.Map<UUID,Stored<Channel>> channels = new java.util.LinkedHashMap<UUID,Stored<Channel>>();
+        final java.util.List<Channel.Event> events = new java.util.ArrayList<Channel.Event>(messages.size());
+        for (Pair<Stored<Channel>,String> message : messages) {
+            channels.putIfAbsent(message.first.identity, message.first);
+            events.add(Channel.Event.createMessageEvent(now, sender, message.second));
+        }
+        try {
+            return Maybe.just(transactions.inTransaction(() -> {
+                // Saved in the order given
+                final java.util.Iterator<Stored<Channel.Event>> saved
+                    = channelStore.eventStore.saveAll(events).values().iterator();
+                final java.util.Map<UUID,java.util.List<Stored<Channel.Event>>> posts
+                    = new java.util.HashMap<UUID,java.util.List<Stored<Channel.Event>>>();
+                for (Pair<Stored<Channel>,String> message : messages) {
+                    posts.computeIfAbsent(message.first.identity, id -> new java.util.ArrayList<Stored<Channel.Event>>())
+                         .add(saved.next());
+                }
+                final java.util.Map<UUID,Stored<Channel>> posted = new java.util.LinkedHashMap<UUID,Stored<Channel>>();
+                for (Stored<Channel> channel : channels.values()) {
+                    final java.util.List<Stored<Channel.Event>> channelPosts = posts.get(channel.identity);
+                    posted.put(channel.identity, Util.updateSingle(channel,
+                                    channelStore,
+                                    c -> c.value.postEvents(channelPosts)));
+                }
+                return posted;
+            }));
+        } catch (DeletedException e) {
+            // A channel was deleted, and nothing was posted.
+        } catch (SQLException e) {
+            System.err.println("When trying to post " + messages.size() + " messages:\n" + e);
+        }
+        return Maybe.nothing();
+    }
+
     /**
      * A blocking call which returns the next state of the channel.
      */
-    public Maybe<Stored<Channel>> waitNextChannelVersion(UUID identity, UUID version) {
+    public Maybe<Stored<Channel>> waitNextChannelVersion(UUID identity, long version) {
         try {
             return Maybe.just(channelStore.waitNextVersion(identity, version));
         } catch (SQLException e) {
@@ -193,6 +350,50 @@ public class InChat {
         return Maybe.nothing();
     }
     
+    /**
+     * Get a page of older events of a channel.
+     * @param before The sequence number which the page ends before,
+     *               such as the start of the page shown now.
+     */
+    public Maybe<Stored<Channel>> getChannelPage(UUID channelId, long before) {
+        try {
+            return Maybe.just(channelStore.getPage(channelId, before, ChannelStorage.DEFAULT_WINDOW));
+        } catch (SQLException e) {
+            System.err.println("While loading events of " + channelId + ":\n" + e);
+        } catch (DeletedException e) {
+            // Channel deleted.
+        }
+        return Maybe.nothing();
+    }
+
+    /**
+     * Get a page of the activity in all the channels of an account.
+     * @param before The position which the page ends before, such
+     *               as the position of the oldest entry shown now.
+     */
+    public List<TimelineEntry> getTimeline(Stored<Account> account, long before) {
+        try {
+            return channelStore.getTimeline(account.identity, before, ChannelStorage.DEFAULT_WINDOW);
+        } catch (SQLException e) {
+            System.err.println("While loading the activity of " + account.identity + ":\n" + e);
+            return List.empty();
+        }
+    }
+
+    /**
+     * Search the messages of the channels an account can read.
+     * @param offset The number of matches shown on earlier pages.
+     * @return The channels and events of the matches, best first.
+     */
+    public List<Pair<UUID,Stored<Channel.Event>>> search(Stored<Account> account, String text, int offset) {
+        try {
+            return channelStore.search(account.identity, text, offset, SEARCH_PAGE);
+        } catch (SQLException e) {
+            System.err.println("While searching for " + text + ":\n" + e);
+            return List.empty();
+        }
+    }
+
     /**
      * Get an event by its identity.
      */
@@ -210,8 +411,10 @@ public class InChat {
     public Stored<Channel> deleteEvent(Stored<Channel> channel, Stored<Channel.Event> event) {
         //maybe check token
         try {
-            Util.deleteSingle(event , channelStore.eventStore);
-            return channelStore.noChangeUpdate(channel.identity);
+            return transactions.inTransaction(() -> {
+                Util.deleteSingle(event , channelStore.eventStore);
+                return channelStore.noChangeUpdate(channel.identity);
+            });
         } catch (SQLException er) {
             System.err.println("While deleting event " + event.identity +":\n" + er);
         } catch (DeletedException er) {
@@ -220,6 +423,27 @@ public class InChat {
         return channel;
     }
 
+    /**
+     * Delete every message by a user in a channel, optionally only
+     * those posted within a time range.
+     * @return The number of messages deleted and the channel after,
+     *         or nothing if there is no such user.
+     */
+    public Maybe<Pair<Integer,Stored<Channel>>> deleteMessagesBy(Stored<Channel> channel,
+                                                                 String username,
+                                                                 Maybe<Instant> from,
+                                                                 Maybe<Instant> until) {
+        try {
+            final String sender = accountStore.getUserId(username);
+            return Maybe.just(channelStore.deleteMessagesBy(channel.identity, sender, from, until));
+        } catch (SQLException e) {
+            System.err.println("While deleting the messages of " + username + " in " + channel.identity + ":\n" + e);
+        } catch (DeletedException e) {
+            // No such user, or the channel was deleted
+        }
+        return Maybe.nothing();
+    }
+
     /**
      * Edit a message.
      */
@@ -228,10 +452,12 @@ public class InChat {
                                        String newMessage) {
         //check token
         try{
-            Util.updateSingle(event,
-                            channelStore.eventStore,
-                            e -> e.value.setMessage(newMessage));
-            return channelStore.noChangeUpdate(channel.identity);
+            return transactions.inTransaction(() -> {
+                Util.updateSingle(event,
+                                channelStore.eventStore,
+                                e -> e.value.setMessage(newMessage));
+                return channelStore.noChangeUpdate(channel.identity);
+            });
         } catch (SQLException er) {
             System.err.println("While deleting event " + event.identity +":\n" + er);
         } catch (DeletedException er) {
@@ -241,17 +467,20 @@ public class InChat {
     }
 
     public void setUserAccess(String Username, Stored<Channel> channel, String role) throws SQLException, DeletedException {
-        Stored<Account> account = accountStore.lookup(Username);
+        transactions.inTransaction(() -> {
+            Stored<Account> account = accountStore.lookup(Username);
 
-        if (accountStore.getUserAccess(account, channel.identity).equals("owner")) {
-            System.err.println("Can't change role of owner to make sure that every channel has at least one owner");
-            return;
-        }
-        if (accountStore.checkUserAccess(account,channel)){
-            accountStore.updateUserAccess(account,channel,role);
-        }else{
-            accountStore.setUserAccess(account,channel,role);
-        }
+            if (accountStore.getUserAccess(account, channel.identity).equals("owner")) {
+                System.err.println("Can't change role of owner to make sure that every channel has at least one owner");
+                return account;
+            }
+            if (accountStore.checkUserAccess(account,channel)){
+                accountStore.updateUserAccess(account,channel,role);
+            }else{
+                accountStore.setUserAccess(account,channel,role);
+            }
+            return account;
+        });
     }
 
     public String getUserAccess(Stored<Account> account,UUID channel) throws SQLException {
@@ -259,10 +488,18 @@ public class InChat {
     }
 
     /**
-     * gets the user that ownes the messages.
+     * Check if an account may edit or delete an event of a channel,
+     * as its sender or as an owner or moderator of the channel.
+     * Events of other channels may not be changed through it.
      */
-    public String getMessageOwner(UUID messageId) throws SQLException, DeletedException {
-        return accountStore.lookup(getUserName(channelStore.getMessageOwner(messageId))).identity.toString();
+    public boolean canModify(Stored<Account> account, Stored<Channel> channel, UUID eventId) {
+        try {
+            return channelStore.canModify(account.identity, account.value.user.identity.toString(),
+                                          channel.identity, eventId);
+        } catch (SQLException e) {
+            System.err.println("While checking access to " + eventId + ":\n" + e);
+            return false;
+        }
     }
 
     public String getUserName(String UserID){
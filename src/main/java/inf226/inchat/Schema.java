@@ -0,0 +1,294 @@
+package inf226.inchat;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.UUID;
+
+import inf226.util.immutable.List;
+import inf226.util.Pair;
+
+/**
+ * The Schema class keeps the database schema up to date.
+ *
+ * The schema is built by an ordered list of migrations. The version of
+ * the schema is the number of migrations applied, and each applied
+ * migration is recorded in the SchemaVersion table. At startup the
+ * migrations which are missing are applied in order, each in its own
+ * transaction, so an existing database is upgraded in place.
+ *
+ * New migrations must only ever be added to the end of the list.
+ */
+public final class Schema {
+
+    /**
+     * A migration brings the schema from one version to the next.
+     */
+    @FunctionalInterface
+    public interface Migration {
+        void apply(ConnectionManager connectionManager) throws SQLException;
+    }
+
+    private static final List<Pair<String,Migration>> migrations = migrationList();
+
+    private Schema() { }
+
+    /**
+     * Bring the database up to the latest version.
+     *
+     * @return The version of the schema.
+     */
+    public static synchronized int migrate(ConnectionManager connectionManager)
+      throws SQLException {
+        connectionManager.prepareAndExecuteUpdate(
+            "CREATE TABLE IF NOT EXISTS SchemaVersion (version INTEGER PRIMARY KEY, description TEXT, applied TEXT)", null);
+        int version = getVersion(connectionManager);
+        int next = 0;
+        for (List<Pair<String,Migration>> l = migrations.reverse(); l.length > 0; l = l.tail().defaultValue(List.empty())) {
+            if (++next <= version)
+                continue;
+            final Pair<String,Migration> migration = l.head().defaultValue(null);
+            final String[] record = new String[]{Integer.toString(next), migration.first, Instant.now().toString()};
+            System.err.println("Migrating database to version " + next + ": " + migration.first);
+            connectionManager.inTransaction(() -> {
+                migration.second.apply(connectionManager);
+                return connectionManager.prepareAndExecuteUpdate("INSERT INTO SchemaVersion VALUES(?,?,?)", record);
+            });
+            version = next;
+        }
+        return version;
+    }
+
+    /**
+     * Get the version of the database, which is 0 for a database
+     * made before versioning.
+     */
+    public static int getVersion(ConnectionManager connectionManager)
+      throws SQLException {
+        return connectionManager.prepareAndExecuteQuery("SELECT max(version) FROM SchemaVersion", null,
+                rs -> rs.next() ? rs.getInt(1) : 0);
+    }
+
+    /**
+     * The latest version of the schema.
+     */
+    public static int getLatestVersion() {
+        return migrations.length;
+    }
+
+    /**
+     * Make a migration from a list of SQL statements.
+     */
+    private static Migration sql(String... statements) {
+        return connectionManager -> {
+            for (String statement : statements) {
+                connectionManager.prepareAndExecuteUpdate(statement, null);
+            }
+        };
+    }
+
+    /**
+     * The list of migrations, with the last one at the head.
+     */
+    private static List<Pair<String,Migration>> migrationList() {
+        final List.Builder<Pair<String,Migration>> list = List.builder();
+
+        // Version 1: The tables as they were before versioning
+        list.accept(Pair.pair("Initial tables", sql(
+            "CREATE TABLE IF NOT EXISTS User (id TEXT PRIMARY KEY, version TEXT, name TEXT, joined TEXT)",
+            "CREATE TABLE IF NOT EXISTS Event (id TEXT PRIMARY KEY, version TEXT, type INTEGER, time TEXT)",
+            "CREATE TABLE IF NOT EXISTS Message (id TEXT PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)",
+            "CREATE TABLE IF NOT EXISTS Joined (id TEXT PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)",
+            "CREATE TABLE IF NOT EXISTS Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT)",
+            "CREATE TABLE IF NOT EXISTS ChannelEvent (channel TEXT, event TEXT, ordinal INTEGER, PRIMARY KEY(channel,event), FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE, FOREIGN KEY(event) REFERENCES Event(id) ON DELETE CASCADE)",
+            "CREATE TABLE IF NOT EXISTS Account (id TEXT PRIMARY KEY , version TEXT, user TEXT, key TEXT, FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)",
+            "CREATE TABLE IF NOT EXISTS AccountChannel (account TEXT, channel TEXT, alias TEXT, ordinal INTEGER, PRIMARY KEY(account,channel), FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)",
+            "CREATE TABLE IF NOT EXISTS Channel_permissions (channel TEXT not null,account TEXT not null, permission TEXT not null)",
+            "CREATE TABLE IF NOT EXISTS Session (id TEXT PRIMARY KEY, version TEXT, account TEXT, expiry TEXT, FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE)")));
+
+        // Version 2: Keys and covering indexes for the queries run on every request
+        list.accept(Pair.pair("Indexes for permission, event, login and membership lookups", sql(
+            // Channel_permissions had no key, and could hold duplicates.
+            // The last row written for a (channel, account) pair wins.
+            "CREATE TEMP TABLE Channel_permissions_old AS SELECT rowid AS seq,channel,account,permission FROM Channel_permissions",
+            "DROP TABLE Channel_permissions",
+            "CREATE TABLE Channel_permissions (channel TEXT NOT NULL, account TEXT NOT NULL, permission TEXT NOT NULL, PRIMARY KEY(channel,account)) WITHOUT ROWID",
+            "INSERT OR REPLACE INTO Channel_permissions SELECT channel,account,permission FROM Channel_permissions_old ORDER BY seq",
+            "DROP TABLE Channel_permissions_old",
+            "CREATE INDEX IF NOT EXISTS ChannelEvent_event ON ChannelEvent(event, channel)",
+            "CREATE INDEX IF NOT EXISTS ChannelEvent_channel_ordinal ON ChannelEvent(channel, ordinal, event)",
+            "CREATE INDEX IF NOT EXISTS User_name ON User(name, id)",
+            "CREATE INDEX IF NOT EXISTS Account_user ON Account(user, id)",
+            "CREATE INDEX IF NOT EXISTS AccountChannel_account_ordinal ON AccountChannel(account, ordinal, channel, alias)",
+            "CREATE INDEX IF NOT EXISTS Session_account ON Session(account)")));
+
+        // Version 3: Keys as 16 byte BLOBs instead of 36 character TEXT.
+        // The columns keep their declared type, as SQLite cannot change it
+        // in place; a TEXT column stores a BLOB unconverted.
+        list.accept(Pair.pair("Binary keys", connectionManager -> {
+            // Parents and children are converted one table at a time
+            connectionManager.prepareAndExecuteUpdate("PRAGMA defer_foreign_keys = ON", null);
+            binaryKeys(connectionManager, "User", "rowid", "id", "version");
+            binaryKeys(connectionManager, "Event", "rowid", "id", "version");
+            binaryKeys(connectionManager, "Message", "rowid", "id");
+            binaryKeys(connectionManager, "Joined", "rowid", "id");
+            binaryKeys(connectionManager, "Channel", "rowid", "id", "version");
+            binaryKeys(connectionManager, "ChannelEvent", "rowid", "channel", "event");
+            binaryKeys(connectionManager, "Account", "rowid", "id", "version", "user");
+            binaryKeys(connectionManager, "AccountChannel", "rowid", "account", "channel");
+            binaryKeys(connectionManager, "Session", "rowid", "id", "version", "account");
+            // Channel_permissions has no rowid, and is keyed on both columns
+            binaryKeys(connectionManager, "Channel_permissions", "channel", "channel", "account");
+        }));
+
+        // Version 4: Versions are counters instead of random UUIDs.
+        // Every stored object starts over at version 0. The TEXT columns
+        // keep the number as text, which compares equal to a bound integer.
+        list.accept(Pair.pair("Counter versions", sql(
+            "UPDATE User SET version=0",
+            "UPDATE Event SET version=0",
+            "UPDATE Channel SET version=0",
+            "UPDATE Account SET version=0",
+            "UPDATE Session SET version=0")));
+
+        // Version 5: ChannelEvent.ordinal counts up from the oldest event,
+        // instead of down from the newest, so new events can be appended.
+        list.accept(Pair.pair("Channel event sequence numbers", sql(
+            "CREATE TEMP TABLE ChannelEvent_last (channel PRIMARY KEY, last INTEGER)",
+            "INSERT INTO ChannelEvent_last SELECT channel, max(ordinal) FROM ChannelEvent GROUP BY channel",
+            "UPDATE ChannelEvent SET ordinal = (SELECT last FROM ChannelEvent_last WHERE ChannelEvent_last.channel = ChannelEvent.channel) - ordinal",
+            "DROP TABLE ChannelEvent_last")));
+
+        // Version 6: An event is one row of Event, whatever its type.
+        // The sender and content of every type are columns of Event, and
+        // Message and Joined are left as views for reading.
+        list.accept(Pair.pair("Single row events", sql(
+            "ALTER TABLE Event ADD COLUMN sender TEXT",
+            "ALTER TABLE Event ADD COLUMN content TEXT",
+            "UPDATE Event SET sender = coalesce((SELECT sender FROM Message WHERE Message.id = Event.id),"
+                + " (SELECT sender FROM Joined WHERE Joined.id = Event.id)),"
+                + " content = (SELECT content FROM Message WHERE Message.id = Event.id)",
+            "DROP TABLE Message",
+            "DROP TABLE Joined",
+            "CREATE VIEW Message AS SELECT id, sender, content FROM Event WHERE type = 0",
+            "CREATE VIEW Joined AS SELECT id, sender FROM Event WHERE type = 1")));
+
+        // Version 7: A summary of each channel, for lists of channels
+        list.accept(Pair.pair("Channel summaries", sql(
+            "CREATE TABLE ChannelSummary (channel TEXT PRIMARY KEY, name TEXT, version INTEGER, events INTEGER,"
+                + " last_time TEXT, last_sender TEXT, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)",
+            "INSERT INTO ChannelSummary SELECT id, name, version,"
+                + " (SELECT count(*) FROM ChannelEvent WHERE ChannelEvent.channel = Channel.id),"
+                + " (SELECT Event.time FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+                + "  WHERE ChannelEvent.channel = Channel.id ORDER BY ChannelEvent.ordinal DESC LIMIT 1),"
+                + " (SELECT Event.sender FROM ChannelEvent JOIN Event ON Event.id = ChannelEvent.event"
+                + "  WHERE ChannelEvent.channel = Channel.id ORDER BY ChannelEvent.ordinal DESC LIMIT 1)"
+                + " FROM Channel")));
+
+        // Version 8: Read cursors, and the last sequence number of each
+        // channel, so unread events are counted without reading them
+        list.accept(Pair.pair("Read cursors", sql(
+            "ALTER TABLE ChannelSummary ADD COLUMN last_ordinal INTEGER",
+            "UPDATE ChannelSummary SET last_ordinal ="
+                + " (SELECT max(ordinal) FROM ChannelEvent WHERE ChannelEvent.channel = ChannelSummary.channel)",
+            "CREATE TABLE ReadCursor (account TEXT NOT NULL, channel TEXT NOT NULL, seen INTEGER NOT NULL,"
+                + " PRIMARY KEY(account,channel),"
+                + " FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE,"
+                + " FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE) WITHOUT ROWID")));
+
+        // Version 9: An activity timeline for each account, filled when
+        // events are posted. The position of an entry is the rowid of
+        // its event, so entries of every channel are in posting order.
+        list.accept(Pair.pair("Activity timelines", sql(
+            "CREATE INDEX AccountChannel_channel ON AccountChannel(channel, account)",
+            "CREATE TABLE Timeline (account TEXT NOT NULL, position INTEGER NOT NULL,"
+                + " channel TEXT NOT NULL, event TEXT NOT NULL,"
+                + " PRIMARY KEY(account,position),"
+                + " FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE,"
+                + " FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE,"
+                + " FOREIGN KEY(event) REFERENCES Event(id) ON DELETE CASCADE) WITHOUT ROWID",
+            "CREATE INDEX Timeline_event ON Timeline(event)",
+            "CREATE INDEX Timeline_channel ON Timeline(channel)")));
+
+        // Version 10: A full-text index of messages. The rowid of the text
+        // of a message is the rowid of its event. Messages already saved
+        // are indexed by EventStorage.rebuildSearchIndex(), from the
+        // rowid in SearchBackfill down.
+        list.accept(Pair.pair("Full-text search", sql(
+            "CREATE VIRTUAL TABLE EventText USING fts5(content, tokenize = 'unicode61 remove_diacritics 2')",
+            "CREATE TABLE SearchBackfill (upto INTEGER NOT NULL)",
+            "INSERT INTO SearchBackfill SELECT coalesce(max(rowid), 0) FROM Event")));
+
+        // Version 11: The next sequence number of each channel. It only
+        // grows, so a number is not given again when the newest event is
+        // deleted. It is kept above every read cursor, as cursors may
+        // already be past the newest event.
+        list.accept(Pair.pair("Channel sequence counters", sql(
+            "ALTER TABLE Channel ADD COLUMN next_seq INTEGER NOT NULL DEFAULT 0",
+            "UPDATE Channel SET next_seq = max("
+                + " coalesce((SELECT max(ordinal) + 1 FROM ChannelEvent WHERE ChannelEvent.channel = Channel.id), 0),"
+                + " coalesce((SELECT max(seen) + 1 FROM ReadCursor WHERE ReadCursor.channel = Channel.id), 0))")));
+
+        return list.getList();
+    }
+
+    /**
+     * Convert the TEXT UUIDs in some columns of a table to BLOBs.
+     *
+     * @param table The table.
+     * @param key A column, besides those converted, which identifies a row.
+     *            For a key made of the converted columns, give one of them.
+     * @param columns The columns to convert.
+     */
+    private static void binaryKeys(ConnectionManager connectionManager,
+                                   String table,
+                                   String key,
+                                   String... columns) throws SQLException {
+        final boolean ownKey = java.util.Arrays.asList(columns).contains(key);
+        final String[] keys = ownKey ? columns : new String[]{key};
+        final StringBuilder select = new StringBuilder("SELECT ");
+        final StringBuilder set = new StringBuilder();
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder where = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            select.append(columns[i]).append(',');
+            set.append(i == 0 ? "" : ",").append(columns[i]).append("=?");
+            text.append(i == 0 ? "" : " OR ").append("typeof(").append(columns[i]).append(")='text'");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            select.append(keys[i]).append(" AS key").append(i).append(i + 1 < keys.length ? "," : "");
+            where.append(i == 0 ? "" : " AND ").append(keys[i]).append("=?");
+        }
+        select.append(" FROM ").append(table).append(" WHERE ").append(text);
+
+        final java.util.List<Object[]> rows = connectionManager.prepareAndExecuteQuery(select.toString(), null, rs -> {
+            final java.util.List<Object[]> result = new java.util.ArrayList<Object[]>();
+            while (rs.next()) {
+                final Object[] row = new Object[columns.length + keys.length];
+                for (int i = 0; i < columns.length; i++) {
+                    row[i] = binaryKey(rs.getObject(columns[i]));
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    row[columns.length + i] = rs.getObject("key" + i);
+                }
+                result.add(row);
+            }
+            return result;
+        });
+        connectionManager.prepareAndExecuteBatch(
+            "UPDATE " + table + " SET " + set + " WHERE " + where, rows);
+    }
+
+    /**
+     * The BLOB form of a TEXT UUID. Other values are left as they are.
+     */
+    private static Object binaryKey(Object value) {
+        if (value instanceof String) {
+            try {
+                return UUID.fromString((String)value);
+            } catch (IllegalArgumentException e) {
+                // Not a UUID
+            }
+        }
+        return value;
+    }
+}
@@ -1,4 +1,5 @@
 package inf226.inchat;
+import java.sql.SQLException;
 import java.time.Instant;
 import inf226.storage.*;
 
@@ -8,10 +9,17 @@ import inf226.storage.*;
  * A session is created each time the user logs in.
  */
 public final class Session {
-    final Stored<Account> account;
+    final Reference<Account,SQLException> account;
     final Instant expiry;
 
     public Session( Stored<Account> account, Instant expiry) {
+        this(Reference.of(account), expiry);
+    }
+
+    /**
+     * A session whose account is only loaded when it is used.
+     */
+    public Session( Reference<Account,SQLException> account, Instant expiry) {
         this.account = account;
         this.expiry = expiry;
     }
@@ -1,13 +1,17 @@
 package inf226.inchat;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import inf226.storage.*;
+import inf226.util.Pair;
 
 /**
  * The SessionStorage stores Session objects in a SQL database.
@@ -18,14 +22,13 @@ public final class SessionStorage
     final ConnectionManager connectionManager;
     final Storage<Account,SQLException> accountStorage;
     
-    public SessionStorage(Connection connection,
+    public SessionStorage(ConnectionManager connectionManager,
                           Storage<Account,SQLException> accountStorage)
       throws SQLException {
-        this.connectionManager = new ConnectionManager(connection);
+        this.connectionManager = connectionManager;
         this.accountStorage = accountStorage;
 
-        String sessionTableQuery = "CREATE TABLE IF NOT EXISTS Session (id TEXT PRIMARY KEY, version TEXT, account TEXT, expiry TEXT, FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE)";
-        connectionManager.prepareAndExecuteUpdate(sessionTableQuery, null);
+        Schema.migrate(connectionManager);
     }
     
     @Override
@@ -34,41 +37,36 @@ public final class SessionStorage
         
         final Stored<Session> stored = new Stored<Session>(session);
         String saveSessionQuery =  "INSERT INTO Session VALUES(?,?,?,?)";
-        String[] saveSessionData = new String[]{stored.identity.toString(), stored.version.toString(), session.account.identity.toString(), session.expiry.toString()};
+        Object[] saveSessionData = new Object[]{stored.identity, stored.version, session.account.identity, session.expiry.toString()};
         connectionManager.prepareAndExecuteUpdate(saveSessionQuery, saveSessionData);
         return stored;
     }
     
     @Override
-    public synchronized Stored<Session> update(Stored<Session> session,
+    public Stored<Session> update(Stored<Session> session,
                                             Session new_session)
         throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Session> current = get(session.identity);
-        final Stored<Session> updated = current.newVersion(new_session);
-        if(current.version.equals(session.version)) {
-            String updateSessionQuery = "UPDATE Session SET (version,account,expiry) =(?,?,?) WHERE id= ?";
-            String[] updateSessionData = new String[]{updated.version.toString(), new_session.account.identity.toString(), new_session.expiry.toString(), updated.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(updateSessionQuery, updateSessionData);
-        } else {
-            throw new UpdatedException(current);
+        final Stored<Session> next = session.newVersion(new_session);
+        String updateSessionQuery = "UPDATE Session SET (version,account,expiry) =(version+1,?,?) WHERE id= ? AND version= ?";
+        Object[] updateSessionData = new Object[]{new_session.account.identity, new_session.expiry.toString(), session.identity, session.version};
+        if(!connectionManager.prepareAndExecuteCompareAndSet(updateSessionQuery, updateSessionData)) {
+            // The session was updated or deleted since it was read
+            throw new UpdatedException(get(session.identity));
         }
-        return updated;
+        return next;
     }
    
     @Override
-    public synchronized void delete(Stored<Session> session)
+    public void delete(Stored<Session> session)
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Session> current = get(session.identity);
-        if(current.version.equals(session.version)) {
-            String deleteQuery =  "DELETE FROM Session WHERE id = ?";
-            String[] deleteData = new String[]{session.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(deleteQuery, deleteData);
-        } else {
-            throw new UpdatedException(current);
+        String deleteQuery =  "DELETE FROM Session WHERE id = ? AND version = ?";
+        Object[] deleteData = new Object[]{session.identity, session.version};
+        if(!connectionManager.prepareAndExecuteCompareAndSet(deleteQuery, deleteData)) {
+            throw new UpdatedException(get(session.identity));
         }
     }
     @Override
@@ -76,19 +74,103 @@ public final class SessionStorage
       throws DeletedException,
              SQLException {
         final String getSessionQuery = "SELECT version,account,expiry FROM Session WHERE id = ?";
-        final String[] getSessionData = new String[]{id.toString()};
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(getSessionQuery, getSessionData);
-
-        if(rs.next()) {
-            final UUID version = UUID.fromString(rs.getString("version"));
-            final Stored<Account> account
-               = accountStorage.get(
-                    UUID.fromString(rs.getString("account")));
-            final Instant expiry = Instant.parse(rs.getString("expiry"));
-            return (new Stored<Session>
-                        (new Session(account,expiry),id,version));
-        } else {
+        final Object[] getSessionData = new Object[]{id};
+        final Pair<Long,Pair<UUID,Instant>> row = connectionManager.prepareAndExecuteQuery(getSessionQuery, getSessionData, rs -> {
+            if(rs.next()) {
+                final long version = rs.getLong("version");
+                final UUID account = ConnectionManager.getUUID(rs, "account");
+                final Instant expiry = Instant.parse(rs.getString("expiry"));
+                return Pair.pair(version, Pair.pair(account, expiry));
+            }
+            return null;
+        });
+        if(row == null)
             throw new DeletedException();
+        final Reference<Account,SQLException> account
+           = Reference.lazy(row.second.first, accountStorage);
+        return (new Stored<Session>
+                    (new Session(account,row.second.second),id,row.first));
+    }
+
+    /**
+     * Save several sessions as one batch.
+     */
+    @Override
+    public Map<UUID,Stored<Session>> saveAll(Collection<Session> sessions)
+      throws SQLException {
+        final Map<UUID,Stored<Session>> stored = new LinkedHashMap<UUID,Stored<Session>>();
+        final List<Object[]> rows = new ArrayList<Object[]>(sessions.size());
+        for (Session session : sessions) {
+            final Stored<Session> next = new Stored<Session>(session);
+            stored.put(next.identity, next);
+            rows.add(new Object[]{next.identity, next.version, session.account.identity, session.expiry.toString()});
+        }
+        connectionManager.prepareAndExecuteBatch("INSERT INTO Session VALUES(?,?,?,?)", rows);
+        return stored;
+    }
+
+    /**
+     * Delete several sessions as one batch. If any of them was updated
+     * or deleted since it was read, none of them are deleted.
+     */
+    @Override
+    public void deleteAll(Collection<Stored<Session>> sessions)
+       throws UpdatedException,
+              DeletedException,
+              SQLException {
+        final List<Stored<Session>> list = new ArrayList<Stored<Session>>(sessions);
+        final List<Object[]> rows = new ArrayList<Object[]>(list.size());
+        for (Stored<Session> session : list) {
+            rows.add(new Object[]{session.identity, session.version});
+        }
+        final int conflict = connectionManager.prepareAndExecuteCompareAndSetBatch(
+            "DELETE FROM Session WHERE id = ? AND version = ?", rows);
+        if(conflict >= 0)
+            throw new UpdatedException(get(list.get(conflict).identity));
+    }
+
+    /**
+     * Get several sessions, with one query for every
+     * ConnectionManager.MAX_IN_LIST of them.
+     */
+    @Override
+    public Map<UUID,Stored<Session>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final Map<UUID,Stored<Session>> sessions = new HashMap<UUID,Stored<Session>>();
+        for (Object[] chunk : ConnectionManager.inListChunks(ids)) {
+            final String getSessionsQuery = "SELECT id,version,account,expiry FROM Session WHERE id IN " + ConnectionManager.inList(chunk.length);
+            connectionManager.prepareAndExecuteQuery(getSessionsQuery, chunk, rs -> {
+                while(rs.next()) {
+                    final UUID id = ConnectionManager.getUUID(rs, "id");
+                    final long version = rs.getLong("version");
+                    final Reference<Account,SQLException> account
+                        = Reference.lazy(ConnectionManager.getUUID(rs, "account"), accountStorage);
+                    final Instant expiry = Instant.parse(rs.getString("expiry"));
+                    sessions.put(id, new Stored<Session>(new Session(account,expiry),id,version));
+                }
+                return sessions;
+            });
         }
+        return sessions;
+    }
+
+    /**
+     * Get the current version of a session, without loading it.
+     */
+    @Override
+    public long getCurrentVersion(UUID id)
+      throws DeletedException,
+             SQLException {
+        final String versionQuery = "SELECT version FROM Session WHERE id = ?";
+        final Object[] versionData = new Object[]{id};
+        final Long version = connectionManager.prepareAndExecuteQuery(versionQuery, versionData, rs -> {
+            if(rs.next()) {
+                return rs.getLong("version");
+            }
+            return null;
+        });
+        if(version == null)
+            throw new DeletedException();
+        return version;
     }
 }
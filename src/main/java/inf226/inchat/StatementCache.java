@@ -0,0 +1,145 @@
+package inf226.inchat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of prepared statements for a single connection,
+ * keyed by the SQL text of the statement.
+ *
+ * The cache is not thread safe on its own: the owner must hold the
+ * lock for the connection while a statement is borrowed.
+ */
+public final class StatementCache {
+
+    private final Connection connection;
+    private final int capacity;
+    private final Map<String,Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cached statement, together with the book-keeping needed to
+     * avoid closing or re-executing it while a ResultSet is open.
+     */
+    static final class Entry {
+        final PreparedStatement statement;
+        final boolean cached;
+        boolean inUse = false;
+        boolean evicted = false;
+
+        Entry(PreparedStatement statement, boolean cached) {
+            this.statement = statement;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * Create a new statement cache.
+     *
+     * @param connection The connection the statements belong to.
+     * @param capacity   The maximal number of statements kept open.
+     */
+    public StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 2916253008112845201L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                if (size() <= StatementCache.this.capacity)
+                    return false;
+                evictions.incrementAndGet();
+                retire(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Borrow a statement for the given query. If the cached statement
+     * is already in use (by an enclosing query on the same thread),
+     * a temporary statement is prepared instead.
+     */
+    Entry borrow(String query) throws SQLException {
+        Entry entry = entries.get(query);
+        if (entry != null && !entry.inUse) {
+            hits.incrementAndGet();
+            entry.statement.clearParameters();
+        } else if (entry != null) {
+            misses.incrementAndGet();
+            entry = new Entry(connection.prepareStatement(query), false);
+        } else {
+            misses.incrementAndGet();
+            entry = new Entry(connection.prepareStatement(query), true);
+            entries.put(query, entry);
+        }
+        entry.inUse = true;
+        return entry;
+    }
+
+    /**
+     * Give back a borrowed statement.
+     */
+    void release(Entry entry) throws SQLException {
+        entry.inUse = false;
+        if (!entry.cached || entry.evicted) {
+            entry.statement.close();
+        }
+    }
+
+    /**
+     * Close all cached statements.
+     */
+    void clear() throws SQLException {
+        for (Entry entry : entries.values()) {
+            retire(entry);
+        }
+        entries.clear();
+    }
+
+    private void retire(Entry entry) {
+        entry.evicted = true;
+        if (!entry.inUse) {
+            try {
+                entry.statement.close();
+            } catch (SQLException e) {
+                System.err.println("Could not close evicted statement: " + e);
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCache(size=" + size() + "/" + capacity
+             + ", hits=" + getHits()
+             + ", misses=" + getMisses()
+             + ", evictions=" + getEvictions() + ")";
+    }
+}
@@ -0,0 +1,24 @@
+package inf226.inchat;
+
+import inf226.storage.Stored;
+import java.util.UUID;
+
+/**
+ * The TimelineEntry class is an event in the activity timeline
+ * of an account, together with the channel it was posted to.
+ *
+ * Entries are ordered by their position, which grows with every
+ * event saved, across all channels. The position of the oldest
+ * entry of a page is the cursor for the next page.
+ */
+public final class TimelineEntry {
+    public final long position;
+    public final UUID channel;
+    public final Stored<Channel.Event> event;
+
+    public TimelineEntry(long position, UUID channel, Stored<Channel.Event> event) {
+        this.position = position;
+        this.channel = channel;
+        this.event = event;
+    }
+}
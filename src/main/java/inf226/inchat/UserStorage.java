@@ -1,9 +1,13 @@
 package inf226.inchat;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import inf226.storage.*;
@@ -17,11 +21,10 @@ public final class UserStorage
 
     final ConnectionManager connectionManager;
 
-    public UserStorage(Connection connection) 
+    public UserStorage(ConnectionManager connectionManager)
       throws SQLException {
-        this.connectionManager = new ConnectionManager(connection);
-        String userTableQuery = "CREATE TABLE IF NOT EXISTS User (id TEXT PRIMARY KEY, version TEXT, name TEXT, joined TEXT)";
-        connectionManager.prepareAndExecuteUpdate(userTableQuery, null);
+        this.connectionManager = connectionManager;
+        Schema.migrate(connectionManager);
     }
     
     @Override
@@ -29,41 +32,36 @@ public final class UserStorage
       throws SQLException {
         final Stored<User> stored = new Stored<>(user);
         String saveUserQuery =  "INSERT INTO User VALUES(?,?,?,?)";
-        String[] saveUserData = new String[]{stored.identity.toString(), stored.version.toString(), user.name.getUserName(), user.joined.toString()};
+        Object[] saveUserData = new Object[]{stored.identity, stored.version, user.name.getUserName(), user.joined.toString()};
         connectionManager.prepareAndExecuteUpdate(saveUserQuery, saveUserData);
         return stored;
     }
     
     @Override
-    public synchronized Stored<User> update(Stored<User> user,
+    public Stored<User> update(Stored<User> user,
                                             User new_user)
         throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<User> current = get(user.identity);
-        final Stored<User> updated = current.newVersion(new_user);
-        if(current.version.equals(user.version)) {
-            String updateUserQuery = "UPDATE User SET (version,name,joined) =(?,?,?) WHERE id= ?";
-            String[] updateUserData = new String[]{updated.version.toString(), new_user.name.getUserName(), new_user.joined.toString(), updated.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(updateUserQuery, updateUserData);
-        } else {
-            throw new UpdatedException(current);
+        final Stored<User> next = user.newVersion(new_user);
+        String updateUserQuery = "UPDATE User SET (version,name,joined) =(version+1,?,?) WHERE id= ? AND version= ?";
+        Object[] updateUserData = new Object[]{new_user.name.getUserName(), new_user.joined.toString(), user.identity, user.version};
+        if(!connectionManager.prepareAndExecuteCompareAndSet(updateUserQuery, updateUserData)) {
+            // The user was updated or deleted since it was read
+            throw new UpdatedException(get(user.identity));
         }
-        return updated;
+        return next;
     }
    
     @Override
-    public synchronized void delete(Stored<User> user)
+    public void delete(Stored<User> user)
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<User> current = get(user.identity);
-        if(current.version.equals(user.version)) {
-            String deleteUserQuery =  "DELETE FROM User WHERE id ='" + user.identity + "'";
-            String[] deleteUserData = new String[]{user.identity.toString()};
-            connectionManager.prepareAndExecuteUpdate(deleteUserQuery, deleteUserData);
-        } else {
-            throw new UpdatedException(current);
+        String deleteUserQuery =  "DELETE FROM User WHERE id = ? AND version = ?";
+        Object[] deleteUserData = new Object[]{user.identity, user.version};
+        if(!connectionManager.prepareAndExecuteCompareAndSet(deleteUserQuery, deleteUserData)) {
+            throw new UpdatedException(get(user.identity));
         }
     }
     @Override
@@ -71,19 +69,101 @@ public final class UserStorage
       throws DeletedException,
              SQLException {
         final String getUserQuery = "SELECT version,name,joined FROM User WHERE id = ?";
-        final String[] getUserData = new String[]{id.toString()};
-        final ResultSet rs = connectionManager.prepareAndExecuteQuery(getUserQuery, getUserData);
-
-        if(rs.next()) {
-            final UUID version = 
-                UUID.fromString(rs.getString("version"));
-            final String name = rs.getString("name");
-            final Instant joined = Instant.parse(rs.getString("joined"));
-            return (new Stored<>
-                        (new User(name,joined),id,version));
-        } else {
+        final Object[] getUserData = new Object[]{id};
+        final Stored<User> user = connectionManager.prepareAndExecuteQuery(getUserQuery, getUserData, rs -> {
+            if(rs.next()) {
+                final long version = rs.getLong("version");
+                final String name = rs.getString("name");
+                final Instant joined = Instant.parse(rs.getString("joined"));
+                return (new Stored<>
+                            (new User(name,joined),id,version));
+            }
+            return null;
+        });
+        if(user == null)
             throw new DeletedException();
+        return user;
+    }
+
+    /**
+     * Save several users as one batch.
+     */
+    @Override
+    public Map<UUID,Stored<User>> saveAll(Collection<User> users)
+      throws SQLException {
+        final Map<UUID,Stored<User>> stored = new LinkedHashMap<UUID,Stored<User>>();
+        final List<Object[]> rows = new ArrayList<Object[]>(users.size());
+        for (User user : users) {
+            final Stored<User> next = new Stored<>(user);
+            stored.put(next.identity, next);
+            rows.add(new Object[]{next.identity, next.version, user.name.getUserName(), user.joined.toString()});
+        }
+        connectionManager.prepareAndExecuteBatch("INSERT INTO User VALUES(?,?,?,?)", rows);
+        return stored;
+    }
+
+    /**
+     * Delete several users as one batch. If any of them was updated
+     * or deleted since it was read, none of them are deleted.
+     */
+    @Override
+    public void deleteAll(Collection<Stored<User>> users)
+       throws UpdatedException,
+              DeletedException,
+              SQLException {
+        final List<Stored<User>> list = new ArrayList<Stored<User>>(users);
+        final List<Object[]> rows = new ArrayList<Object[]>(list.size());
+        for (Stored<User> user : list) {
+            rows.add(new Object[]{user.identity, user.version});
+        }
+        final int conflict = connectionManager.prepareAndExecuteCompareAndSetBatch(
+            "DELETE FROM User WHERE id = ? AND version = ?", rows);
+        if(conflict >= 0)
+            throw new UpdatedException(get(list.get(conflict).identity));
+    }
+
+    /**
+     * Get several users, with one query for every
+     * ConnectionManager.MAX_IN_LIST of them.
+     */
+    @Override
+    public Map<UUID,Stored<User>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final Map<UUID,Stored<User>> users = new HashMap<UUID,Stored<User>>();
+        for (Object[] chunk : ConnectionManager.inListChunks(ids)) {
+            final String getUsersQuery = "SELECT id,version,name,joined FROM User WHERE id IN " + ConnectionManager.inList(chunk.length);
+            connectionManager.prepareAndExecuteQuery(getUsersQuery, chunk, rs -> {
+                while(rs.next()) {
+                    final UUID id = ConnectionManager.getUUID(rs, "id");
+                    final long version = rs.getLong("version");
+                    final String name = rs.getString("name");
+                    final Instant joined = Instant.parse(rs.getString("joined"));
+                    users.put(id, new Stored<>(new User(name,joined),id,version));
+                }
+                return users;
+            });
         }
+        return users;
+    }
+
+    /**
+     * Get the current version of a user, without loading it.
+     */
+    @Override
+    public long getCurrentVersion(UUID id)
+      throws DeletedException,
+             SQLException {
+        final String versionQuery = "SELECT version FROM User WHERE id = ?";
+        final Object[] versionData = new Object[]{id};
+        final Long version = connectionManager.prepareAndExecuteQuery(versionQuery, versionData, rs -> {
+            if(rs.next()) {
+                return rs.getLong("version");
+            }
+            return null;
+        });
+        if(version == null)
+            throw new DeletedException();
+        return version;
     }
 }
 
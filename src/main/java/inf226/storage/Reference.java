@@ -0,0 +1,73 @@
+package inf226.storage;
+
+import java.util.UUID;
+
+/**
+ * A reference to a stored object, which is only loaded
+ * from its storage the first time it is needed.
+ *
+ * Use this for objects which refer to other stored objects,
+ * so that loading one object does not load all the objects
+ * it refers to.
+ **/
+public final class Reference<T,E extends Exception> {
+  public final UUID identity;
+  private final Storage<T,E> storage;
+  /* Set once loaded. Two threads may load it at the same time,
+     in which case either value is kept. */
+  private volatile Stored<T> stored;
+
+  private Reference(UUID identity, Storage<T,E> storage, Stored<T> stored) {
+    this.identity = identity;
+    this.storage = storage;
+    this.stored = stored;
+  }
+
+  /**
+   * A reference to an object which is already loaded.
+   **/
+  public static<T,E extends Exception> Reference<T,E> of(Stored<T> stored) {
+    return new Reference<T,E>(stored.identity, null, stored);
+  }
+
+  /**
+   * A reference to an object which is loaded from the
+   * storage when it is first needed.
+   **/
+  public static<T,E extends Exception> Reference<T,E> lazy(UUID identity, Storage<T,E> storage) {
+    return new Reference<T,E>(identity, storage, null);
+  }
+
+  /**
+   * Get the object, loading it if it was not loaded before.
+   **/
+  public Stored<T> get() throws DeletedException,E {
+    Stored<T> current = stored;
+    if (current == null) {
+      current = storage.get(identity);
+      stored = current;
+    }
+    return current;
+  }
+
+  /**
+   * Check if the object is loaded, without loading it.
+   **/
+  public boolean isLoaded() {
+    return stored != null;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == null)
+        return false;
+    if (getClass() != other.getClass())
+        return false;
+    return this.identity.equals(((Reference<?,?>) other).identity);
+  }
+
+  @Override
+  public int hashCode() {
+    return identity.hashCode();
+  }
+}
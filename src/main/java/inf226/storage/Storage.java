@@ -3,15 +3,19 @@ package inf226.storage;
 import java.util.function.Consumer;
 import inf226.storage.*;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
  * This provides an interface for an object storage
  * which implements transactional updating of objects.
  *
- * The main limitation of this interface is that you
- * cannot combine updates of several objects into one
- * transaction.
+ * Updates of several objects, possibly in different
+ * storages, can be combined into one transaction by
+ * running them inside TransactionScope.inTransaction().
  **/
 public interface Storage<T,E extends Exception> {
 
@@ -44,4 +48,65 @@ public interface Storage<T,E extends Exception> {
     **/
     public Stored<T> get(UUID id) throws DeletedException,E;
 
+   /**
+    * Get the current version of a stored object.
+    *
+    * Use this to check if an object is stale without
+    * loading it. Storages should override this with a
+    * lookup which does not build the object.
+    **/
+    public default long getCurrentVersion(UUID id) throws DeletedException,E {
+        return get(id).version;
+    }
+
+   /**
+    * Save several new objects into the storage.
+    *
+    * Storages should override this with a set based
+    * implementation, saving all objects in one transaction.
+    *
+    * @return The stored objects by identity, in the order given.
+    **/
+    public default Map<UUID,Stored<T>> saveAll(Collection<T> values) throws E {
+        final Map<UUID,Stored<T>> result = new LinkedHashMap<UUID,Stored<T>>();
+        for (T value : values) {
+            final Stored<T> stored = save(value);
+            result.put(stored.identity, stored);
+        }
+        return result;
+    }
+
+   /**
+    * Delete several objects from the store.
+    *
+    * Storages should override this with a set based
+    * implementation, in which either all of the objects
+    * are deleted, or none of them are.
+    **/
+    public default void deleteAll(Collection<Stored<T>> objects) throws UpdatedException,DeletedException,E {
+        for (Stored<T> object : objects) {
+            delete(object);
+        }
+    }
+
+   /**
+    * Get several stored objects based on UUID.
+    *
+    * Storages should override this with a set based
+    * lookup, making a fixed number of queries.
+    *
+    * @return The objects which exist, by identity.
+    **/
+    public default Map<UUID,Stored<T>> getAll(Collection<UUID> ids) throws E {
+        final Map<UUID,Stored<T>> result = new HashMap<UUID,Stored<T>>();
+        for (UUID id : ids) {
+            try {
+                result.put(id, get(id));
+            } catch (DeletedException e) {
+                // Left out of the result
+            }
+        }
+        return result;
+    }
+
 }
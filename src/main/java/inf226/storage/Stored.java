@@ -8,7 +8,8 @@ import java.util.UUID;
 public class Stored<T> {
   public final T value;
   public final UUID identity;
-  public final UUID version;
+  /* Versions count up from 0, so a later version is always larger. */
+  public final long version;
 
 
   /**
@@ -17,21 +18,21 @@ public class Stored<T> {
   public Stored(T value) {
     this.value = value;
     this.identity = UUID.randomUUID();
-    this.version = UUID.randomUUID();
+    this.version = 0;
   }
 
   /**
    * Construct a new version of this stored object.
    **/
   public Stored<T> newVersion(T newValue) {
-     return new Stored<T>(newValue , identity, UUID.randomUUID());
+     return new Stored<T>(newValue , identity, version + 1);
   }
 
   /**
    * The constructor for recreating a stored object
    * from a serialised version.
    **/
-  public Stored(T value, UUID identity, UUID version) {
+  public Stored(T value, UUID identity, long version) {
     this.value = value;
     this.identity = identity;
     this.version = version;
@@ -46,7 +47,7 @@ public class Stored<T> {
     @SuppressWarnings("unchecked")
     final Stored<T> stored_other = (Stored<T>) other;
     return this.identity.equals(stored_other.identity)
-        && this.version.equals(stored_other.version)
+        && this.version == stored_other.version
         && this.value.equals(stored_other.value);
 
   }
@@ -0,0 +1,14 @@
+package inf226.storage;
+
+/**
+ * A unit of work which is run inside a transaction
+ * by a TransactionScope.
+ *
+ * Besides the exception E of the storage, the transaction
+ * may throw one other kind of exception X, which is passed
+ * on to the caller after the transaction is rolled back.
+ */
+@FunctionalInterface
+public interface Transaction<T,X extends Exception,E extends Exception> {
+   public T run() throws X,E;
+}
@@ -0,0 +1,30 @@
+package inf226.storage;
+
+/**
+ * A TransactionScope combines operations on several
+ * Storage objects into one transaction, which is either
+ * committed as a whole, or rolled back.
+ **/
+public interface TransactionScope<E extends Exception> {
+
+   /**
+    * Run a transaction.
+    *
+    * All storage operations made by the current thread while
+    * the transaction runs are committed together when it returns,
+    * and rolled back if it throws.
+    *
+    * Transactions can be nested. A nested transaction which throws
+    * only rolls back its own changes, and the outer transaction
+    * may carry on.
+    **/
+   public <T,X extends Exception> T inTransaction(Transaction<T,X,E> transaction) throws X,E;
+
+   /**
+    * Run an action once the current transaction has committed.
+    *
+    * Outside of a transaction the action is run immediately.
+    * If the transaction is rolled back, the action is dropped.
+    **/
+   public void afterCommit(Runnable action);
+}
@@ -43,6 +43,7 @@ public class Util {
         while(true) {
             try {
                 storage.delete(stored);
+                return;
             } catch (UpdatedException e) {
                 stored = (Stored<A>)e.newObject;
             } catch (DeletedException e) {
@@ -0,0 +1,197 @@
+package inf226.inchat;
+
+import org.junit.jupiter.api.Test;
+
+import inf226.storage.*;
+import inf226.util.immutable.List;
+
+import java.io.File;
+import java.sql.*;
+import java.time.Instant;
+
+/**
+ * Measures how fast channels are written.
+ *
+ * This is not part of the normal test run. Run it with:
+ *
+ *     mvn test -Dtest=ChannelStorageBenchmark
+ */
+public class ChannelStorageBenchmark {
+
+    @Test
+    void channelEventRows() throws Exception {
+        for (int size : new int[]{10000, 50000}) {
+            final File file = File.createTempFile("inchat-benchmark", ".db");
+            file.deleteOnExit();
+            final ConnectionManager connectionManager
+                = new ConnectionManager(ConnectionPool.open("jdbc:sqlite:" + file.getPath(), 2,
+                                                           ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE));
+            final EventStorage eventStore = new EventStorage(connectionManager);
+            final ChannelStorage channelStore = new ChannelStorage(connectionManager, eventStore);
+
+            final List<Stored<Channel.Event>> events = connectionManager.inTransaction(() -> {
+                List<Stored<Channel.Event>> list = List.empty();
+                for (int i = 0; i < size; i++) {
+                    list = List.cons(eventStore.save(
+                        Channel.Event.createMessageEvent(Instant.now(), "bench", "Message " + i)), list);
+                }
+                return list;
+            });
+
+            long start = System.nanoTime();
+            final Stored<Channel> channel = channelStore.save(new Channel("bench", events));
+            report("save", size, System.nanoTime() - start);
+
+            final Stored<Channel.Event> extra = eventStore.save(
+                Channel.Event.createMessageEvent(Instant.now(), "bench", "One more"));
+            start = System.nanoTime();
+            channelStore.update(channel, channel.value.postEvent(extra));
+            report("update", 1, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            final Stored<Channel> loaded = channelStore.get(channel.identity);
+            System.out.printf("ChannelStorage.get: %d of %d events in %.1f ms%n",
+                              loaded.value.events.length, size + 1, (System.nanoTime() - start) / 1e6);
+
+            System.out.println("    " + connectionManager.getStatementCache());
+            connectionManager.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    void groupCommitWrites() throws Exception {
+        for (long window : new long[]{0, 2}) {
+            final File file = File.createTempFile("inchat-benchmark", ".db");
+            file.deleteOnExit();
+            final ConnectionManager connectionManager
+                = new ConnectionManager(ConnectionPool.open("jdbc:sqlite:" + file.getPath(), 2,
+                                                           ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE));
+            final EventStorage eventStore = new EventStorage(connectionManager);
+            if (window > 0)
+                connectionManager.enableGroupCommit(window, java.util.concurrent.TimeUnit.MILLISECONDS, 256);
+
+            final int threadCount = 16;
+            final int perThread = 100;
+            final Thread[] threads = new Thread[threadCount];
+            final long start = System.nanoTime();
+            for (int i = 0; i < threadCount; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            eventStore.save(Channel.Event.createMessageEvent(Instant.now(), "bench", "Message"));
+                        }
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("EventStorage.save from %d threads, group commit window %d ms: %.0f saves/sec (%d commits)%n",
+                              threadCount, window, threadCount * perThread / seconds,
+                              window > 0 ? connectionManager.getGroupCommits() : threadCount * perThread);
+            connectionManager.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    void concurrentChannelPosts() throws Exception {
+        for (boolean shared : new boolean[]{false, true}) {
+            final File file = File.createTempFile("inchat-benchmark", ".db");
+            file.deleteOnExit();
+            final ConnectionManager connectionManager
+                = new ConnectionManager(ConnectionPool.open("jdbc:sqlite:" + file.getPath(), 4,
+                                                           ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE));
+            final EventStorage eventStore = new EventStorage(connectionManager);
+            final ChannelStorage channelStore = new ChannelStorage(connectionManager, eventStore);
+
+            final int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+            final int perThread = 50;
+            final Stored<Channel> common = channelStore.save(new Channel("common", List.empty()));
+            final Thread[] threads = new Thread[threadCount];
+            final long start = System.nanoTime();
+            for (int i = 0; i < threadCount; i++) {
+                final Stored<Channel> own = shared ? common
+                    : channelStore.save(new Channel("channel" + i, List.empty()));
+                threads[i] = new Thread(() -> {
+                    try {
+                        Stored<Channel> channel = own;
+                        for (int j = 0; j < perThread; j++) {
+                            final Stored<Channel.Event> event = eventStore.save(
+                                Channel.Event.createMessageEvent(Instant.now(), "bench", "Message " + j));
+                            channel = inf226.util.Util.updateSingle(channel, channelStore,
+                                                                    c -> c.value.postEvent(event));
+                        }
+                    } catch (SQLException | DeletedException e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Posts from %d threads to %s: %.0f posts/sec, %d of %d compare-and-sets conflicted, max writer wait %.1f ms%n",
+                              threadCount, shared ? "one channel" : "a channel each",
+                              threadCount * perThread / seconds,
+                              connectionManager.getConflicts(), connectionManager.getCompareAndSets(),
+                              connectionManager.getPool().getMaxWriterWaitNanos() / 1e6);
+            connectionManager.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    void searchMessages() throws Exception {
+        final File file = File.createTempFile("inchat-benchmark", ".db");
+        file.deleteOnExit();
+        final ConnectionManager connectionManager
+            = new ConnectionManager(ConnectionPool.open("jdbc:sqlite:" + file.getPath(), 2,
+                                                       ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE));
+        final EventStorage eventStore = new EventStorage(connectionManager);
+        final ChannelStorage channelStore = new ChannelStorage(connectionManager, eventStore);
+        final UserStorage userStore = new UserStorage(connectionManager);
+        final AccountStorage accountStore = new AccountStorage(connectionManager, userStore, channelStore);
+
+        final int size = 200000;
+        final String[] words = {"lunch", "meeting", "release", "deploy", "coffee", "review", "bug", "test"};
+        final java.util.List<Channel.Event> messages = new java.util.ArrayList<Channel.Event>(size);
+        for (int i = 0; i < size; i++) {
+            messages.add(Channel.Event.createMessageEvent(Instant.now(), "bench",
+                words[i % words.length] + " " + words[(i / 7) % words.length] + " number " + i));
+        }
+        long start = System.nanoTime();
+        final java.util.Map<java.util.UUID,Stored<Channel.Event>> events = eventStore.saveAll(messages);
+        System.out.printf("EventStorage.saveAll: %d indexed messages in %.1f ms%n",
+                          size, (System.nanoTime() - start) / 1e6);
+
+        List<Stored<Channel.Event>> list = List.empty();
+        for (Stored<Channel.Event> event : events.values()) {
+            list = List.cons(event, list);
+        }
+        final Stored<Channel> channel = channelStore.save(new Channel("bench", list));
+        final Stored<Account> account = accountStore.save(
+            Account.create(userStore.save(User.create("bench")), "password").joinChannel("bench", channel));
+
+        for (String query : new String[]{"number 123456", "deploy coffee", "lunch"}) {
+            start = System.nanoTime();
+            final int found = channelStore.search(account.identity, query, 0, InChat.SEARCH_PAGE).length;
+            System.out.printf("ChannelStorage.search \"%s\": %d matches on the first page in %.1f ms%n",
+                              query, found, (System.nanoTime() - start) / 1e6);
+        }
+        connectionManager.close();
+        file.delete();
+    }
+
+    private static void report(String operation, int rows, long nanos) {
+        final double seconds = nanos / 1e9;
+        System.out.printf("ChannelStorage.%s: %d ChannelEvent rows in %.1f ms (%.0f rows/sec)%n",
+                          operation, rows, seconds * 1000, rows / seconds);
+    }
+}
@@ -2,11 +2,14 @@
 package inf226.inchat;
 
 import com.lambdaworks.crypto.SCryptUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import inf226.storage.*;
 
 import inf226.util.*;
+import inf226.util.immutable.List;
 
 import javax.xml.transform.Result;
 import java.security.Permission;
@@ -17,6 +20,35 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class InchatTest{
+    /* An in-memory database with every storage wired up as by the
+       server. Each test gets a new one. */
+    private Connection connection;
+    private ConnectionManager connectionManager;
+    private UserStorage userStore;
+    private EventStorage eventStore;
+    private ChannelStorage channelStore;
+    private AccountStorage accountStore;
+    private SessionStorage sessionStore;
+    private InChat inchat;
+
+    @BeforeEach
+    void openChat() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+        connectionManager = new ConnectionManager(connection);
+        userStore = new UserStorage(connectionManager);
+        eventStore = new EventStorage(connectionManager);
+        channelStore = new ChannelStorage(connectionManager, eventStore);
+        accountStore = new AccountStorage(connectionManager, userStore, channelStore);
+        sessionStore = new SessionStorage(connectionManager, accountStore);
+        inchat = new InChat(userStore, channelStore, accountStore, sessionStore);
+    }
+
+    @AfterEach
+    void closeChat() throws SQLException {
+        connectionManager.close();
+    }
+
     @Test
     void chatSetup() throws Maybe.NothingException,SQLException {
         UUID testID = UUID.randomUUID();
@@ -25,21 +57,22 @@ public class InchatTest{
         final String dburl = "jdbc:sqlite:" + path;
         final Connection connection = DriverManager.getConnection(dburl);
         connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+        final ConnectionManager connectionManager = new ConnectionManager(connection);
 
         UserStorage userStore
-            = new UserStorage(connection);
+            = new UserStorage(connectionManager);
 
         EventStorage eventStore
-            = new EventStorage(connection);
+            = new EventStorage(connectionManager);
 
         ChannelStorage channelStore
-            = new ChannelStorage(connection,eventStore);
+            = new ChannelStorage(connectionManager,eventStore);
 
         AccountStorage accountStore
-            = new AccountStorage(connection,userStore,channelStore);
+            = new AccountStorage(connectionManager,userStore,channelStore);
 
         SessionStorage sessionStore
-            = new SessionStorage(connection,accountStore);
+            = new SessionStorage(connectionManager,accountStore);
 
         InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore);
 
@@ -49,11 +82,11 @@ public class InchatTest{
 
         Stored<Session> bobSession = inchat.login("Bob","worsedE4g..").get();
 
-        Stored<Channel> channel = inchat.createChannel(aliceSession.value.account,"Awesome").get();
+        Stored<Channel> channel = inchat.createChannel(inchat.getAccount(aliceSession).get(),"Awesome").get();
 
-        inchat.postMessage(aliceSession.value.account,channel, "Test message.").get();
+        inchat.postMessage(inchat.getAccount(aliceSession).get(),channel, "Test message.").get();
 
-        inchat.joinChannel(bobSession.value.account,channel.identity).get();
+        inchat.joinChannel(inchat.getAccount(bobSession).get(),channel.identity).get();
     }
 
 
@@ -64,14 +97,15 @@ public class InchatTest{
         final Connection connection = DriverManager.getConnection(dburl);
         try {
             connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+            final ConnectionManager connectionManager = new ConnectionManager(connection);
 
-            UserStorage userStore = new UserStorage(connection);
+            UserStorage userStore = new UserStorage(connectionManager);
 
-            EventStorage eventStore = new EventStorage(connection);
+            EventStorage eventStore = new EventStorage(connectionManager);
 
-            ChannelStorage channelStore = new ChannelStorage(connection, eventStore);
+            ChannelStorage channelStore = new ChannelStorage(connectionManager, eventStore);
 
-            AccountStorage accountStore = new AccountStorage(connection, userStore, channelStore);
+            AccountStorage accountStore = new AccountStorage(connectionManager, userStore, channelStore);
 
             if(Password.check("min", accountStore.getPassword("min"))){
                 System.out.println(accountStore.getPassword("min"));
@@ -99,14 +133,15 @@ public class InchatTest{
         final Connection connection = DriverManager.getConnection(dburl);
         try {
             connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+            final ConnectionManager connectionManager = new ConnectionManager(connection);
 
-            UserStorage userStore = new UserStorage(connection);
+            UserStorage userStore = new UserStorage(connectionManager);
 
-            EventStorage eventStore = new EventStorage(connection);
+            EventStorage eventStore = new EventStorage(connectionManager);
 
-            ChannelStorage channelStore = new ChannelStorage(connection, eventStore);
+            ChannelStorage channelStore = new ChannelStorage(connectionManager, eventStore);
 
-            AccountStorage accountStore = new AccountStorage(connection, userStore, channelStore);
+            AccountStorage accountStore = new AccountStorage(connectionManager, userStore, channelStore);
 
             System.out.println(accountStore.lookup("Sindre").identity);
 
@@ -129,21 +164,22 @@ public class InchatTest{
         final String dburl = "jdbc:sqlite:" + path;
         final Connection connection = DriverManager.getConnection(dburl);
         connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+        final ConnectionManager connectionManager = new ConnectionManager(connection);
 
         UserStorage userStore
-                = new UserStorage(connection);
+                = new UserStorage(connectionManager);
 
         EventStorage eventStore
-                = new EventStorage(connection);
+                = new EventStorage(connectionManager);
 
         ChannelStorage channelStore
-                = new ChannelStorage(connection,eventStore);
+                = new ChannelStorage(connectionManager,eventStore);
 
         AccountStorage accountStore
-                = new AccountStorage(connection,userStore,channelStore);
+                = new AccountStorage(connectionManager,userStore,channelStore);
 
         SessionStorage sessionStore
-                = new SessionStorage(connection,accountStore);
+                = new SessionStorage(connectionManager,accountStore);
 
         InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore);
 
@@ -153,13 +189,1017 @@ public class InchatTest{
 
         Stored<Session> bobSession = inchat.login("Bob","worsedE4g..").get();
 
-        Stored<Channel> channel = inchat.createChannel(aliceSession.value.account,"Awesome").get();
+        Stored<Channel> channel = inchat.createChannel(inchat.getAccount(aliceSession).get(),"Awesome").get();
 
-        inchat.joinChannel(bobSession.value.account,channel.identity).get();
+        inchat.joinChannel(inchat.getAccount(bobSession).get(),channel.identity).get();
 
         assert accountStore.checkUserAccess(accountStore.lookup("Alice"),channel);
     }
 
-}
+    @Test
+    void TestStatementCache() throws SQLException {
+        final Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        final ConnectionManager connectionManager = new ConnectionManager(connection, 2);
+        final StatementCache cache = connectionManager.getStatementCache();
+
+        connectionManager.prepareAndExecuteUpdate("CREATE TABLE Test (id TEXT)", null);
+        for (int i = 0; i < 3; i++) {
+            connectionManager.prepareAndExecuteUpdate("INSERT INTO Test VALUES(?)", new String[]{"row" + i});
+        }
+        int count = connectionManager.prepareAndExecuteQuery("SELECT count(*) FROM Test", null,
+                rs -> rs.getInt(1));
+        assert count == 3;
+        assert cache.getHits() == 2;
+        assert cache.getEvictions() == 1;
+
+        // A nested query with the same SQL must not clobber the outer ResultSet
+        int rows = connectionManager.prepareAndExecuteQuery("SELECT id FROM Test", null, outer -> {
+            int n = 0;
+            while (outer.next()) {
+                n += connectionManager.prepareAndExecuteQuery("SELECT id FROM Test", null, inner -> inner.next() ? 1 : 0);
+            }
+            return n;
+        });
+        assert rows == 3;
+        assert cache.size() <= cache.getCapacity();
+        connectionManager.close();
+    }
+
+    @Test
+    void TestConnectionPool() throws SQLException, InterruptedException {
+        UUID testID = UUID.randomUUID();
+        final String dburl = "jdbc:sqlite:test" + testID + ".db";
+        final ConnectionPool pool = ConnectionPool.open(dburl, 2, ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE);
+        final ConnectionManager connectionManager = new ConnectionManager(pool);
+
+        connectionManager.prepareAndExecuteUpdate("CREATE TABLE Test (id TEXT)", null);
+        connectionManager.prepareAndExecuteUpdate("INSERT INTO Test VALUES(?)", new String[]{"a"});
+
+        // Readers see committed writes, and reads run on several threads
+        final Thread[] threads = new Thread[4];
+        final int[] counts = new int[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        counts[n] += connectionManager.prepareAndExecuteQuery("SELECT count(*) FROM Test", null,
+                                rs -> rs.getInt(1));
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int count : counts) {
+            assert count == 50;
+        }
+        assert pool.getReaderCount() == 2;
+        assert pool.getIdleReaders() == 2;
+        assert pool.getReaderAcquisitions() == 200;
+        assert pool.getWriterAcquisitions() == 2;
+
+        // Readers are read-only
+        boolean failed = false;
+        try {
+            connectionManager.prepareAndExecuteQuery("SELECT count(*) FROM Test", null, rs -> {
+                final Connection reader = rs.getStatement().getConnection();
+                reader.createStatement().executeUpdate("DELETE FROM Test");
+                return 0;
+            });
+        } catch (SQLException e) {
+            failed = true;
+        }
+        assert failed;
+        connectionManager.close();
+    }
+
+    @Test
+    void TestTransaction() throws SQLException {
+        // A transaction which throws is rolled back as a whole
+        final Mutable<Stored<User>> saved = new Mutable<>(null);
+        final Mutable<Boolean> notified = new Mutable<>(false);
+        try {
+            connectionManager.inTransaction(() -> {
+                saved.accept(userStore.save(User.create("Alice")));
+                connectionManager.afterCommit(() -> notified.accept(true));
+                throw new DeletedException();
+            });
+            assert false;
+        } catch (DeletedException e) {
+            // Expected
+        }
+        boolean deleted = false;
+        try {
+            userStore.get(saved.get().identity);
+        } catch (DeletedException e) {
+            deleted = true;
+        }
+        assert deleted;
+        assert !notified.get();
+
+        // A failing nested transaction only rolls back its own changes
+        final Stored<User> bob = connectionManager.inTransaction(() -> {
+            final Stored<User> outer = userStore.save(User.create("Bob"));
+            try {
+                connectionManager.inTransaction(() -> {
+                    saved.accept(userStore.save(User.create("Carol")));
+                    throw new DeletedException();
+                });
+            } catch (DeletedException e) {
+                // Carol is rolled back
+            }
+            connectionManager.afterCommit(() -> notified.accept(true));
+            return outer;
+        });
+        assert notified.get();
+        try {
+            assert userStore.get(bob.identity).value.name.getUserName().equals("Bob");
+            userStore.get(saved.get().identity);
+            assert false;
+        } catch (DeletedException e) {
+            // Expected
+        }
+
+        // A channel whose owner cannot join it is not created
+        final Stored<Account> unsaved = new Stored<Account>(Account.create(bob, "password"));
+        assert inchat.createChannel(unsaved, "Orphan").isNothing();
+        final ResultSet rows = connection.createStatement().executeQuery(
+            "SELECT (SELECT count(*) FROM Channel) + (SELECT count(*) FROM Channel_permissions)");
+        assert rows.next() && rows.getInt(1) == 0;
+    }
+
+    @Test
+    void TestGroupCommit() throws SQLException, InterruptedException {
+        UUID testID = UUID.randomUUID();
+        final String dburl = "jdbc:sqlite:test" + testID + ".db";
+        final ConnectionManager connectionManager
+            = new ConnectionManager(ConnectionPool.open(dburl, 2, ConnectionManager.DEFAULT_STATEMENT_CACHE_SIZE));
+        final UserStorage userStore = new UserStorage(connectionManager);
+        connectionManager.enableGroupCommit(20, java.util.concurrent.TimeUnit.MILLISECONDS, 64);
+
+        final Thread[] threads = new Thread[8];
+        final java.util.List<Stored<User>> users = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 10; j++) {
+                        users.add(userStore.save(User.create("user" + n + "_" + j)));
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert users.size() == 80;
+        assert connectionManager.getGroupOperations() == 80;
+        assert connectionManager.getGroupCommits() < 80;
+
+        // A failing transaction does not take the rest of its group with it
+        final Mutable<Stored<User>> failed = new Mutable<>(null);
+        boolean thrown = false;
+        try {
+            connectionManager.inTransaction(() -> {
+                failed.accept(userStore.save(User.create("Mallory")));
+                throw new DeletedException();
+            });
+        } catch (DeletedException e) {
+            thrown = true;
+        }
+        assert thrown;
+        try {
+            for (Stored<User> user : users) {
+                userStore.get(user.identity);
+            }
+        } catch (DeletedException e) {
+            assert false;
+        }
+        thrown = false;
+        try {
+            userStore.get(failed.get().identity);
+        } catch (DeletedException e) {
+            thrown = true;
+        }
+        assert thrown;
+
+        // Transactions submitted while group commit is disabled still complete
+        final java.util.concurrent.atomic.AtomicInteger saved = new java.util.concurrent.atomic.AtomicInteger();
+        for (int round = 0; round < 20; round++) {
+            connectionManager.enableGroupCommit(1, java.util.concurrent.TimeUnit.MILLISECONDS, 64);
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        userStore.save(User.create("late"));
+                        saved.incrementAndGet();
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                });
+                threads[i].start();
+            }
+            connectionManager.disableGroupCommit();
+            for (Thread thread : threads) {
+                thread.join(10000);
+                assert !thread.isAlive();
+            }
+        }
+        assert saved.get() == 20 * threads.length;
+        connectionManager.close();
+    }
+
+    @Test
+    void TestSchemaMigration() throws SQLException, DeletedException {
+        final Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        final ConnectionManager connectionManager = new ConnectionManager(connection);
+
+        // A database from before versioning, with duplicate permissions
+        final Statement statement = connection.createStatement();
+        statement.executeUpdate("CREATE TABLE Channel_permissions (channel TEXT not null,account TEXT not null, permission TEXT not null)");
+        statement.executeUpdate("INSERT INTO Channel_permissions VALUES ('c','a','participant')");
+        statement.executeUpdate("INSERT INTO Channel_permissions VALUES ('c','a','moderator')");
+        statement.executeUpdate("INSERT INTO Channel_permissions VALUES ('c','b','owner')");
+        // Keys stored as TEXT
+        final UUID userId = UUID.randomUUID();
+        final UUID accountId = UUID.randomUUID();
+        statement.executeUpdate("CREATE TABLE User (id TEXT PRIMARY KEY, version TEXT, name TEXT, joined TEXT)");
+        statement.executeUpdate("CREATE TABLE Account (id TEXT PRIMARY KEY , version TEXT, user TEXT, key TEXT, FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)");
+        statement.executeUpdate("INSERT INTO User VALUES ('" + userId + "','" + UUID.randomUUID() + "','Alice','" + java.time.Instant.now() + "')");
+        statement.executeUpdate("INSERT INTO Account VALUES ('" + accountId + "','" + UUID.randomUUID() + "','" + userId + "','key')");
+        // Events split over Event, Message and Joined
+        final UUID messageId = UUID.randomUUID();
+        final UUID joinId = UUID.randomUUID();
+        statement.executeUpdate("CREATE TABLE Event (id TEXT PRIMARY KEY, version TEXT, type INTEGER, time TEXT)");
+        statement.executeUpdate("CREATE TABLE Message (id TEXT PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+        statement.executeUpdate("CREATE TABLE Joined (id TEXT PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+        statement.executeUpdate("INSERT INTO Event VALUES ('" + messageId + "','" + UUID.randomUUID() + "',0,'" + java.time.Instant.now() + "')");
+        statement.executeUpdate("INSERT INTO Message VALUES ('" + messageId + "','Alice','Hello')");
+        statement.executeUpdate("INSERT INTO Event VALUES ('" + joinId + "','" + UUID.randomUUID() + "',1,'" + java.time.Instant.now() + "')");
+        statement.executeUpdate("INSERT INTO Joined VALUES ('" + joinId + "','Bob')");
+        statement.executeUpdate("PRAGMA foreign_keys = ON");
+
+        assert Schema.migrate(connectionManager) == Schema.getLatestVersion();
+        assert Schema.getVersion(connectionManager) == Schema.getLatestVersion();
+        // Running it again changes nothing
+        assert Schema.migrate(connectionManager) == Schema.getLatestVersion();
+
+        // The last written permission is kept
+        final ResultSet permissions = statement.executeQuery("SELECT permission FROM Channel_permissions WHERE channel='c' ORDER BY account");
+        assert permissions.next() && permissions.getString(1).equals("moderator");
+        assert permissions.next() && permissions.getString(1).equals("owner");
+        assert !permissions.next();
+
+        // The keys are converted, and can still be followed
+        final ResultSet keys = statement.executeQuery("SELECT typeof(id),length(id),typeof(user) FROM Account");
+        assert keys.next() && keys.getString(1).equals("blob") && keys.getInt(2) == 16 && keys.getString(3).equals("blob");
+        final UserStorage userStore = new UserStorage(connectionManager);
+        final AccountStorage accountStore = new AccountStorage(connectionManager, userStore, null);
+        assert accountStore.get(accountId).value.user.identity.equals(userId);
+        assert accountStore.lookup("Alice").identity.equals(accountId);
+        final Stored<User> bob = userStore.save(User.create("Bob"));
+        final ResultSet saved = statement.executeQuery("SELECT typeof(id) FROM User WHERE name='Bob'");
+        assert saved.next() && saved.getString(1).equals("blob");
+        assert userStore.get(bob.identity).value.name.getUserName().equals("Bob");
+
+        // An event is read from its one row
+        final EventStorage eventStore = new EventStorage(connectionManager);
+        final Stored<Channel.Event> message = eventStore.get(messageId);
+        assert message.value.type == Channel.Event.Type.message;
+        assert message.value.sender.equals("Alice") && message.value.message.equals("Hello");
+        assert eventStore.get(joinId).value.sender.equals("Bob");
+        final ResultSet joined = statement.executeQuery("SELECT sender FROM Joined");
+        assert joined.next() && joined.getString(1).equals("Bob") && !joined.next();
+
+        // The lookups are served by indexes
+        final ResultSet plan = statement.executeQuery("EXPLAIN QUERY PLAN SELECT channel FROM ChannelEvent WHERE event='e'");
+        assert plan.next() && plan.getString(4).contains("ChannelEvent_event");
+        connectionManager.close();
+    }
+
+    @Test
+    void TestVersions() throws SQLException, DeletedException {
+        // Versions count up
+        final Stored<User> alice = userStore.save(User.create("Alice"));
+        assert alice.version == 0;
+        final Stored<User> renamed = Util.updateSingle(alice, userStore, u -> User.create("Alicia"));
+        assert renamed.version == 1;
+        assert userStore.get(alice.identity).version == 1;
+        assert userStore.getCurrentVersion(alice.identity) == 1;
+
+        // An update of a stale version is refused, and gives the current one
+        boolean refused = false;
+        try {
+            userStore.update(alice, User.create("Eve"));
+        } catch (UpdatedException e) {
+            refused = true;
+            assert ((Stored<?>)e.newObject).version == 1;
+        }
+        assert refused;
+        assert userStore.get(alice.identity).value.name.getUserName().equals("Alicia");
+
+        // So is a delete
+        refused = false;
+        try {
+            userStore.delete(alice);
+        } catch (UpdatedException e) {
+            refused = true;
+        }
+        assert refused;
+        // Only the stale version counts as a conflict
+        final long conflicts = connectionManager.getConflicts();
+        Util.deleteSingle(alice, userStore);
+        assert connectionManager.getConflicts() == conflicts + 1;
+        boolean deleted = false;
+        try {
+            userStore.update(renamed, User.create("Eve"));
+        } catch (UpdatedException e) {
+            assert false;
+        } catch (DeletedException e) {
+            deleted = true;
+        }
+        assert deleted;
+        deleted = false;
+        try {
+            userStore.getCurrentVersion(alice.identity);
+        } catch (DeletedException e) {
+            deleted = true;
+        }
+        assert deleted;
+
+        // The probe reads only the header of a channel
+        final Stored<Channel> channel = channelStore.save(new Channel("Probe", inf226.util.immutable.List.empty()));
+        final Stored<Channel.Event> event = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "Hello"));
+        final Stored<Channel> posted = Util.updateSingle(channel, channelStore, c -> c.value.postEvent(event));
+        final long misses = connectionManager.getStatementCache().getMisses();
+        final long hits = connectionManager.getStatementCache().getHits();
+        assert channelStore.getCurrentVersion(channel.identity) == posted.version;
+        assert connectionManager.getStatementCache().getMisses() + connectionManager.getStatementCache().getHits()
+            == misses + hits + 1;
+    }
+
+    @Test
+    void TestAppendEvents() throws SQLException, DeletedException, Maybe.NothingException {
+        final Stored<Channel.Event> first = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "First"));
+        Stored<Channel> channel = channelStore.save(
+            new Channel("Append", inf226.util.immutable.List.singleton(first)));
+        final Statement statement = connection.createStatement();
+        final ResultSet before = statement.executeQuery("SELECT rowid FROM ChannelEvent");
+        assert before.next();
+        final long firstRow = before.getLong(1);
+
+        // Posting adds one row, and keeps the rows already there
+        for (int i = 0; i < 3; i++) {
+            final Stored<Channel.Event> event = eventStore.save(
+                Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "Message " + i));
+            channel = Util.updateSingle(channel, channelStore, c -> c.value.postEvent(event));
+        }
+        final ResultSet rows = statement.executeQuery("SELECT rowid,ordinal FROM ChannelEvent ORDER BY ordinal");
+        for (int i = 0; i < 4; i++) {
+            assert rows.next() && rows.getLong(2) == i;
+            if (i == 0)
+                assert rows.getLong(1) == firstRow;
+        }
+        assert !rows.next();
+        final Stored<Channel> loaded = channelStore.get(channel.identity);
+        assert loaded.value.events.length == 4;
+        assert loaded.value.events.head().get().value.message.equals("Message 2");
+        assert loaded.value.events.last.get().value.message.equals("First");
 
+        // Removing the newest event does not free its sequence number
+        final Stored<Channel> removed = Util.updateSingle(loaded, channelStore,
+            c -> new Channel(c.value.name, c.value.events.tail().defaultValue(inf226.util.immutable.List.empty())));
+        assert channelStore.get(channel.identity).value.events.head().get().value.message.equals("Message 1");
+        final Stored<Channel.Event> last = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "Last"));
+        Util.updateSingle(removed, channelStore, c -> c.value.postEvent(last));
+        final ResultSet ordinals = statement.executeQuery("SELECT ordinal FROM ChannelEvent ORDER BY ordinal");
+        for (long ordinal : new long[]{0, 1, 2, 4}) {
+            assert ordinals.next() && ordinals.getLong(1) == ordinal;
+        }
+        assert !ordinals.next();
+    }
+
+    @Test
+    void TestChannelWindow() throws SQLException, DeletedException, Maybe.NothingException {
+        final int size = ChannelStorage.DEFAULT_WINDOW * 2 + 50;
+        final List<Stored<Channel.Event>> events = connectionManager.inTransaction(() -> {
+            List<Stored<Channel.Event>> list = List.empty();
+            for (int i = 0; i < size; i++) {
+                list = List.cons(eventStore.save(
+                    Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "Message " + i)), list);
+            }
+            return list;
+        });
+        final Stored<Channel> saved = channelStore.save(new Channel("Window", events));
+
+        // Only the newest events are loaded
+        final Stored<Channel> channel = channelStore.get(saved.identity);
+        assert channel.value.events.length == ChannelStorage.DEFAULT_WINDOW;
+        assert channel.value.events.head().get().value.message.equals("Message " + (size - 1));
+        assert channel.value.start == size - ChannelStorage.DEFAULT_WINDOW;
+        assert channel.value.hasOlderEvents();
+
+        // Paging back with the cursor
+        final Stored<Channel> older = channelStore.getPage(saved.identity, channel.value.start, ChannelStorage.DEFAULT_WINDOW);
+        assert older.value.events.head().get().value.message.equals("Message " + (channel.value.start - 1));
+        final List<Pair<Long,Stored<Channel.Event>>> first = channelStore.getEventsBefore(saved.identity, older.value.start, 1000);
+        assert first.length == 50 && first.last.get().first == 0;
+        assert !channelStore.getPage(saved.identity, 50, 1000).value.hasOlderEvents();
+        final List<Pair<Long,Stored<Channel.Event>>> newer = channelStore.getEventsAfter(saved.identity, size - 3, 1000);
+        assert newer.length == 2 && newer.head().get().first == size - 1;
+
+        // Posting to and rewriting the window keeps the older events
+        final Stored<Channel.Event> post = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "New"));
+        final Stored<Channel> posted = Util.updateSingle(channel, channelStore, c -> c.value.postEvent(post));
+        Util.updateSingle(posted, channelStore,
+            c -> new Channel(c.value.name, c.value.events.tail().defaultValue(List.empty()), c.value.start));
+        final ResultSet count = connection.createStatement().executeQuery("SELECT count(*) FROM ChannelEvent");
+        assert count.next() && count.getInt(1) == size;
+        assert channelStore.get(saved.identity).value.events.head().get().value.message.equals("Message " + (size - 1));
+    }
+
+    @Test
+    void TestBulkLoad() throws SQLException, DeletedException, Maybe.NothingException {
+        final int size = 1000;
+        final List<Stored<Channel.Event>> events = connectionManager.inTransaction(() -> {
+            List<Stored<Channel.Event>> list = List.empty();
+            for (int i = 0; i < size; i++) {
+                list = List.cons(eventStore.save(i % 10 == 0
+                    ? Channel.Event.createJoinEvent(java.time.Instant.now(), "Bob")
+                    : Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "Message " + i)), list);
+            }
+            return list;
+        });
+        final Stored<Channel> big = channelStore.save(new Channel("Big", events));
+        final Stored<Channel> empty = channelStore.save(new Channel("Empty", List.empty()));
+        final StatementCache cache = connectionManager.getStatementCache();
 
+        // A whole channel is loaded with one query for the channel and one for its events
+        long statements = cache.getHits() + cache.getMisses();
+        final Stored<Channel> loaded = channelStore.get(big.identity, size);
+        assert cache.getHits() + cache.getMisses() - statements == 2;
+        assert loaded.value.events.map(e -> e.identity).equals(events.map(e -> e.identity));
+        assert loaded.value.events.head().get().value.message.equals("Message " + (size - 1));
+        assert loaded.value.events.last.get().value.type == Channel.Event.Type.join;
+        assert eventStore.get(events.head().get().identity).value.sender.equals("Alice");
+
+        // Several channels are loaded with one query for the channels and one for their events
+        final Map<UUID,Stored<Channel>> channels
+            = channelStore.get(Arrays.asList(big.identity, empty.identity, UUID.randomUUID()), 10);
+        assert channels.size() == 2;
+        assert channels.get(big.identity).value.events.length == 10;
+        assert channels.get(big.identity).value.events.head().get().identity.equals(events.head().get().identity);
+        assert channels.get(big.identity).value.start == size - 10;
+        assert channels.get(empty.identity).value.events.length == 0;
+
+        // An account is loaded with its list of channels, but not the channels
+        final Stored<User> alice = userStore.save(User.create("Alice"));
+        final Stored<Account> account = accountStore.save(
+            Account.create(alice, "password").joinChannel("big", big).joinChannel("empty", empty));
+        statements = cache.getHits() + cache.getMisses();
+        final Stored<Account> loadedAccount = accountStore.get(account.identity);
+        assert cache.getHits() + cache.getMisses() - statements == 3;
+        assert loadedAccount.value.channels.length == 2;
+        final Reference<Channel,SQLException> ref = loadedAccount.value.channels.last.get().second;
+        assert ref.identity.equals(big.identity) && !ref.isLoaded();
+        assert loadedAccount.value.channels.last.get().first.equals("big");
+
+        // The channel is loaded once, when it is used
+        statements = cache.getHits() + cache.getMisses();
+        assert ref.get().value.events.length == ChannelStorage.DEFAULT_WINDOW;
+        assert ref.isLoaded() && ref.get() == ref.get();
+        assert cache.getHits() + cache.getMisses() - statements == 2;
+
+        // So is the account of a session
+        final Stored<Session> session = sessionStore.save(new Session(account, java.time.Instant.now()));
+        final Stored<Session> loadedSession = sessionStore.get(session.identity);
+        assert !loadedSession.value.account.isLoaded();
+        assert loadedSession.value.account.get().value.user.value.name.getUserName().equals("Alice");
+    }
+
+    @Test
+    void TestBulkStorage() throws SQLException, DeletedException, UpdatedException, Maybe.NothingException {
+        // Saved in order, with one batch for each table
+        final ArrayList<User> newUsers = new ArrayList<User>();
+        for (int i = 0; i < 600; i++) {
+            newUsers.add(User.create("User " + i));
+        }
+        final Map<UUID,Stored<User>> users = userStore.saveAll(newUsers);
+        assert users.size() == 600;
+        assert users.values().iterator().next().value.name.getUserName().equals("User 0");
+        final Map<UUID,Stored<Channel.Event>> events = eventStore.saveAll(Arrays.asList(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "User 0", "Hello"),
+            Channel.Event.createJoinEvent(java.time.Instant.now(), "User 1")));
+        final List.Builder<Stored<Channel.Event>> channelEvents = List.builder();
+        events.values().forEach(channelEvents);
+        final Map<UUID,Stored<Channel>> channels = channelStore.saveAll(Arrays.asList(
+            new Channel("One", channelEvents.getList()), new Channel("Two", List.empty())));
+        final Iterator<Stored<Channel>> channel = channels.values().iterator();
+        final Stored<Channel> one = channel.next();
+        final Stored<Channel> two = channel.next();
+        final ArrayList<Account> newAccounts = new ArrayList<Account>();
+        for (Stored<User> user : users.values()) {
+            newAccounts.add(Account.create(user, "password").joinChannel("one", one).joinChannel("two", two));
+        }
+        final Map<UUID,Stored<Account>> accounts = accountStore.saveAll(newAccounts);
+        final Stored<Account> first = accounts.values().iterator().next();
+        final Map<UUID,Stored<Session>> sessions = sessionStore.saveAll(Arrays.asList(
+            new Session(first, java.time.Instant.now())));
+
+        // Loaded with a fixed number of queries, over two IN lists
+        final StatementCache cache = connectionManager.getStatementCache();
+        final long statements = cache.getHits() + cache.getMisses();
+        final ArrayList<UUID> ids = new ArrayList<UUID>(accounts.keySet());
+        ids.add(UUID.randomUUID());
+        final Map<UUID,Stored<Account>> loaded = accountStore.getAll(ids);
+        assert cache.getHits() + cache.getMisses() - statements <= 8;
+        assert loaded.size() == 600;
+        final Stored<Account> account = loaded.get(first.identity);
+        assert account.value.user.value.name.getUserName().equals("User 0");
+        assert account.value.channels.head().get().first.equals("two");
+        assert account.value.channels.last.get().second.get().value.events.length == 2;
+        assert account.value.channels.last.get().second.get().value.events.head().get().value.sender.equals("User 1");
+        assert eventStore.getAll(events.keySet()).size() == 2;
+        assert channelStore.getAll(channels.keySet()).get(two.identity).value.name.equals("Two");
+        assert sessionStore.getAll(sessions.keySet()).values().iterator().next().value.account.identity.equals(first.identity);
+
+        // Deleted all or nothing
+        final Stored<User> changed = Util.updateSingle(users.get(first.value.user.identity), userStore,
+                                                       u -> new User("Renamed", u.value.joined));
+        try {
+            userStore.deleteAll(users.values());
+            assert false;
+        } catch (UpdatedException e) {
+            assert e.newObject.identity.equals(changed.identity) && e.newObject.version == changed.version;
+        }
+        assert userStore.getAll(users.keySet()).size() == 600;
+        sessionStore.deleteAll(sessions.values());
+        accountStore.deleteAll(accounts.values());
+        assert accountStore.getAll(accounts.keySet()).isEmpty();
+        channelStore.deleteAll(channels.values());
+        eventStore.deleteAll(events.values());
+        final ResultSet count = connection.createStatement().executeQuery("SELECT count(*) FROM ChannelEvent");
+        assert count.next() && count.getInt(1) == 0;
+    }
+
+    @Test
+    void TestMembership() throws SQLException, DeletedException, Maybe.NothingException {
+        final ArrayList<Channel> newChannels = new ArrayList<Channel>();
+        for (int i = 0; i < 300; i++) {
+            newChannels.add(new Channel("Channel " + i, List.empty()));
+        }
+        Account value = Account.create(userStore.save(User.create("Alice")), "password");
+        for (Stored<Channel> channel : channelStore.saveAll(newChannels).values()) {
+            value = value.joinChannel(channel.value.name, channel);
+        }
+        final Stored<Account> account = accountStore.save(value);
+        final Stored<Channel> extra = channelStore.save(new Channel("Extra", List.empty()));
+
+        // Joining writes the account version and one membership
+        final Statement statement = connection.createStatement();
+        ResultSet changes = statement.executeQuery("SELECT total_changes()");
+        assert changes.next();
+        final int before = changes.getInt(1);
+        final Stored<Account> joined = accountStore.joinChannel(account, "extra", extra);
+        changes = statement.executeQuery("SELECT total_changes()");
+        assert changes.next() && changes.getInt(1) - before == 2;
+        assert joined.version == account.version + 1;
+        assert joined.value.channels.length == 301;
+        assert joined.value.channels.head().get().first.equals("extra");
+        assert joined.value.channels.last.get().first.equals("Channel 0");
+
+        // A stale account can still join, and joining twice changes nothing
+        final Stored<Account> twice = accountStore.joinChannel(account, "again", extra);
+        assert twice.version == account.version + 2;
+        assert twice.value.channels.length == 301;
+        assert twice.value.channels.head().get().first.equals("extra");
+
+        // Leaving deletes the one membership
+        final Stored<Account> left = accountStore.leaveChannel(joined, extra.identity);
+        assert left.version == account.version + 3;
+        assert left.value.channels.length == 300;
+        assert left.value.channels.head().get().first.equals("Channel 299");
+    }
+
+    @Test
+    void TestChannelSummary() throws SQLException, DeletedException, UpdatedException, Maybe.NothingException {
+        final Stored<Channel.Event> hello = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "Hello"));
+        final Stored<Channel> quiet = channelStore.save(new Channel("Quiet", List.empty()));
+        Stored<Channel> busy = channelStore.save(new Channel("Busy", List.singleton(hello)));
+        final Stored<Account> account = accountStore.save(Account.create(userStore.save(User.create("Alice")), "password")
+            .joinChannel("busy", busy).joinChannel("quiet", quiet));
+
+        // Kept up to date by posts
+        final Stored<Channel.Event> join = eventStore.save(
+            Channel.Event.createJoinEvent(java.time.Instant.now(), "Bob"));
+        busy = Util.updateSingle(busy, channelStore, c -> c.value.postEvent(join));
+        ChannelSummary summary = channelStore.getSummaries(Arrays.asList(busy.identity)).get(busy.identity);
+        assert summary.name.equals("Busy") && summary.version == busy.version;
+        assert summary.events == 2 && summary.lastSender.get().equals("Bob");
+        assert summary.lastTime.get().equals(join.value.time);
+
+        // and by deletes
+        eventStore.delete(join);
+        busy = channelStore.noChangeUpdate(busy.identity);
+        summary = channelStore.getSummaries(Arrays.asList(busy.identity)).get(busy.identity);
+        assert summary.events == 1 && summary.lastSender.get().equals("Alice") && summary.version == busy.version;
+
+        // The channels of an account are listed with one query
+        final StatementCache cache = connectionManager.getStatementCache();
+        final long statements = cache.getHits() + cache.getMisses();
+        final List<Pair<String,ChannelSummary>> summaries = accountStore.getChannelSummaries(account.identity);
+        assert cache.getHits() + cache.getMisses() - statements == 1;
+        assert summaries.length == 2;
+        assert summaries.head().get().first.equals("quiet");
+        assert summaries.head().get().second.events == 0 && summaries.head().get().second.lastSender.isNothing();
+        assert summaries.last.get().second.events == 1;
+        final ResultSet plan = connection.createStatement().executeQuery("EXPLAIN QUERY PLAN "
+            + "SELECT AccountChannel.alias, ChannelSummary.* FROM AccountChannel JOIN ChannelSummary"
+            + " ON ChannelSummary.channel = AccountChannel.channel WHERE AccountChannel.account = 'a'"
+            + " ORDER BY AccountChannel.ordinal DESC");
+        while (plan.next()) {
+            assert !plan.getString(4).startsWith("SCAN");
+        }
+
+        // Deleted with the channel
+        channelStore.delete(quiet);
+        assert accountStore.getChannelSummaries(account.identity).length == 1;
+    }
+
+    @Test
+    void TestReadCursors() throws SQLException, DeletedException, Maybe.NothingException {
+        final List<Stored<Channel.Event>> events = connectionManager.inTransaction(() -> {
+            List<Stored<Channel.Event>> list = List.empty();
+            for (int i = 0; i < 10; i++) {
+                list = List.cons(eventStore.save(
+                    Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Message " + i)), list);
+            }
+            return list;
+        });
+        final Stored<Channel> channel = channelStore.save(new Channel("Chat", events));
+        final Stored<Channel> empty = channelStore.save(new Channel("Empty", List.empty()));
+        final Stored<Account> account = accountStore.save(Account.create(userStore.save(User.create("Alice")), "password")
+            .joinChannel("chat", channel).joinChannel("empty", empty));
+
+        // Nothing seen yet
+        assert accountStore.getChannelSummaries(account.identity).last.get().second.unread == 10;
+        assert accountStore.getChannelSummaries(account.identity).head().get().second.unread == 0;
+
+        // Written at once without coalescing, and never moved back
+        accountStore.markSeen(account.identity, channel.identity, 6);
+        accountStore.markSeen(account.identity, channel.identity, 3);
+        assert accountStore.getChannelSummaries(account.identity).last.get().second.unread == 3;
+
+        // With coalescing, cursors are counted before they are written
+        final Statement statement = connection.createStatement();
+        accountStore.enableCursorCoalescing(1, java.util.concurrent.TimeUnit.HOURS);
+        ResultSet changes = statement.executeQuery("SELECT total_changes()");
+        assert changes.next();
+        final int before = changes.getInt(1);
+        for (long seen = 6; seen < 10; seen++) {
+            accountStore.markSeen(account.identity, channel.identity, seen);
+        }
+        assert accountStore.getChannelSummaries(account.identity).last.get().second.unread == 0;
+        changes = statement.executeQuery("SELECT total_changes()");
+        assert changes.next() && changes.getInt(1) == before;
+
+        // and written once
+        accountStore.flushCursors();
+        changes = statement.executeQuery("SELECT total_changes()");
+        assert changes.next() && changes.getInt(1) == before + 1;
+        final ResultSet cursor = statement.executeQuery("SELECT seen FROM ReadCursor");
+        assert cursor.next() && cursor.getLong(1) == 9 && !cursor.next();
+
+        // New posts are unread
+        final Stored<Channel.Event> post = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "New"));
+        Util.updateSingle(channel, channelStore, c -> c.value.postEvent(post));
+        assert accountStore.getChannelSummaries(account.identity).last.get().second.unread == 1;
+        accountStore.disableCursorCoalescing();
+
+        // Deleted events leave gaps, and a window knows its real sequence numbers
+        final java.util.List<Stored<Channel.Event>> oldest = new java.util.ArrayList<Stored<Channel.Event>>();
+        events.forEach(event -> oldest.add(0, event));
+        for (int i : new int[]{0, 1, 4}) {
+            Util.deleteSingle(oldest.get(i), eventStore);
+        }
+        final Stored<Channel> loaded = channelStore.get(channel.identity);
+        assert loaded.value.lastSequenceNumber() == 10;
+        accountStore.markSeen(account.identity, loaded.identity, loaded.value.lastSequenceNumber());
+        assert accountStore.getChannelSummaries(account.identity).last.get().second.unread == 0;
+        assert !channelStore.get(channel.identity, 8).value.hasOlderEvents();
+        assert channelStore.get(channel.identity, 7).value.hasOlderEvents();
+    }
+
+    @Test
+    void TestTimeline() throws SQLException, DeletedException, Maybe.NothingException {
+        channelStore.setFanOutLimit(2);
+
+        Stored<Channel> small = channelStore.save(new Channel("Small", List.empty()));
+        Stored<Channel> large = channelStore.save(new Channel("Large", List.empty()));
+        final Stored<Account> alice = accountStore.save(Account.create(userStore.save(User.create("Alice")), "password"));
+        final Stored<Account> bob = accountStore.save(Account.create(userStore.save(User.create("Bob")), "password"));
+        final Stored<Account> carol = accountStore.save(Account.create(userStore.save(User.create("Carol")), "password"));
+        accountStore.joinChannel(alice, "small", small);
+        accountStore.joinChannel(bob, "small", small);
+        accountStore.joinChannel(alice, "large", large);
+        accountStore.joinChannel(bob, "large", large);
+        accountStore.joinChannel(carol, "large", large);
+
+        // Posts alternate between the channels
+        final java.util.List<UUID> posted = new java.util.ArrayList<UUID>();
+        for (int i = 0; i < 6; i++) {
+            final Stored<Channel.Event> event = eventStore.save(
+                Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Message " + i));
+            posted.add(event.identity);
+            if (i % 2 == 0) {
+                small = Util.updateSingle(small, channelStore, c -> c.value.postEvent(event));
+            } else {
+                large = Util.updateSingle(large, channelStore, c -> c.value.postEvent(event));
+            }
+        }
+
+        // Only posts to the small channel are written to timelines
+        final ResultSet rows = connection.createStatement().executeQuery("SELECT count(*) FROM Timeline");
+        assert rows.next() && rows.getInt(1) == 6;
+
+        // Both channels are in the timeline, newest first
+        final List<TimelineEntry> timeline = channelStore.getTimeline(alice.identity, Long.MAX_VALUE, 10);
+        assert timeline.length == 6;
+        final java.util.List<UUID> read = new java.util.ArrayList<UUID>();
+        timeline.forEach(entry -> read.add(0, entry.event.identity));
+        assert read.equals(posted);
+        assert timeline.head().get().channel.equals(large.identity);
+        assert timeline.last.get().channel.equals(small.identity);
+
+        // Pages continue from the oldest entry of the previous one
+        final List<TimelineEntry> first = channelStore.getTimeline(alice.identity, Long.MAX_VALUE, 4);
+        assert first.length == 4;
+        final List<TimelineEntry> second = channelStore.getTimeline(alice.identity, first.last.get().position, 4);
+        assert second.length == 2;
+        assert second.head().get().event.identity.equals(posted.get(1));
+
+        // Carol only sees the large channel
+        final List<TimelineEntry> carols = channelStore.getTimeline(carol.identity, Long.MAX_VALUE, 10);
+        assert carols.length == 3;
+        final UUID largeId = large.identity;
+        carols.forEach(entry -> { assert entry.channel.equals(largeId); });
+
+        // Deleted events leave the timelines
+        Util.deleteSingle(eventStore.get(posted.get(4)), eventStore);
+        assert channelStore.getTimeline(bob.identity, Long.MAX_VALUE, 10).length == 5;
+
+        // Banned members see nothing of a channel, whether its events are copied or not
+        accountStore.setUserAccess(bob, small, "banned");
+        accountStore.setUserAccess(carol, large, "banned");
+        for (int i = 0; i < 2; i++) {
+            final Stored<Channel.Event> event = eventStore.save(
+                Channel.Event.createMessageEvent(java.time.Instant.now(), "Alice", "After the ban " + i));
+            if (i % 2 == 0) {
+                small = Util.updateSingle(small, channelStore, c -> c.value.postEvent(event));
+            } else {
+                large = Util.updateSingle(large, channelStore, c -> c.value.postEvent(event));
+            }
+        }
+        assert channelStore.getTimeline(carol.identity, Long.MAX_VALUE, 10).length == 0;
+        final List<TimelineEntry> bobs = channelStore.getTimeline(bob.identity, Long.MAX_VALUE, 10);
+        assert bobs.length == 4;
+        bobs.forEach(entry -> { assert entry.channel.equals(largeId); });
+        assert channelStore.getTimeline(alice.identity, Long.MAX_VALUE, 10).length == 7;
+        final ResultSet banned = connection.createStatement().executeQuery(
+            "SELECT count(*) FROM Timeline WHERE event IN (SELECT id FROM Event WHERE content = 'After the ban 0')");
+        assert banned.next() && banned.getInt(1) == 1;
+
+        // The activity of a channel is gone once it is left, copied or not
+        final Stored<Account> leaving = accountStore.leaveChannel(alice, small.identity);
+        final List<TimelineEntry> alices = channelStore.getTimeline(alice.identity, Long.MAX_VALUE, 10);
+        assert alices.length == 4;
+        alices.forEach(entry -> { assert entry.channel.equals(largeId); });
+        assert connectionManager.prepareAndExecuteQuery("SELECT count(*) FROM Timeline WHERE account = ? AND channel = ?",
+            new Object[]{alice.identity, small.identity}, rs -> rs.next() ? rs.getInt(1) : -1) == 0;
+        accountStore.leaveChannel(leaving, large.identity);
+        assert channelStore.getTimeline(alice.identity, Long.MAX_VALUE, 10).length == 0;
+    }
+
+    @Test
+    void TestSearch() throws SQLException, DeletedException, UpdatedException, Maybe.NothingException {
+        final Stored<Channel.Event> once = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Lunch at noon?"));
+        final Stored<Channel.Event> twice = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Lunch, lunch, lunch!"));
+        final Stored<Channel.Event> other = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Dinner"));
+        final Stored<Channel.Event> hidden = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Secret lunch"));
+        final Stored<Channel.Event> banned = eventStore.save(
+            Channel.Event.createMessageEvent(java.time.Instant.now(), "Bob", "Banned lunch"));
+        final Stored<Channel> chat = channelStore.save(
+            new Channel("Chat", List.cons(other, List.cons(twice, List.singleton(once)))));
+        final Stored<Channel> secret = channelStore.save(new Channel("Secret", List.singleton(hidden)));
+        final Stored<Channel> ban = channelStore.save(new Channel("Ban", List.singleton(banned)));
+        final Stored<Account> alice = accountStore.save(Account.create(userStore.save(User.create("Alice")), "password")
+            .joinChannel("chat", chat).joinChannel("ban", ban));
+        accountStore.setUserAccess(alice, ban, "banned");
+
+        // Only readable channels, best match first
+        final List<Pair<UUID,Stored<Channel.Event>>> lunch = channelStore.search(alice.identity, "LUNCH", 0, 10);
+        assert lunch.length == 2;
+        assert lunch.head().get().second.identity.equals(twice.identity);
+        assert lunch.head().get().first.equals(chat.identity);
+        assert lunch.last.get().second.identity.equals(once.identity);
+
+        // Pages
+        assert channelStore.search(alice.identity, "lunch", 1, 10).head().get().second.identity.equals(once.identity);
+        assert channelStore.search(alice.identity, "lunch", 2, 10).length == 0;
+
+        // All words must match, and query syntax is plain text
+        assert channelStore.search(alice.identity, "lunch noon", 0, 10).length == 1;
+        assert channelStore.search(alice.identity, "lunch\" OR dinner", 0, 10).length == 0;
+        assert channelStore.search(alice.identity, "  ", 0, 10).length == 0;
+
+        // Edits and deletions are indexed
+        Util.updateSingle(other, eventStore, e -> e.value.setMessage("Lunch tomorrow"));
+        assert channelStore.search(alice.identity, "lunch", 0, 10).length == 3;
+        assert channelStore.search(alice.identity, "dinner", 0, 10).length == 0;
+        Util.deleteSingle(eventStore.get(twice.identity), eventStore);
+        assert channelStore.search(alice.identity, "lunch", 0, 10).length == 2;
+        eventStore.deleteAll(java.util.Collections.singleton(eventStore.get(once.identity)));
+        assert channelStore.search(alice.identity, "lunch", 0, 10).length == 1;
+
+        // Messages saved before the index are indexed by a rebuild
+        final Statement statement = connection.createStatement();
+        statement.executeUpdate("DELETE FROM EventText");
+        statement.executeUpdate("UPDATE SearchBackfill SET upto = (SELECT max(rowid) FROM Event)");
+        assert channelStore.search(alice.identity, "lunch", 0, 10).length == 0;
+        assert eventStore.rebuildSearchIndex() == 3;
+        assert channelStore.search(alice.identity, "lunch", 0, 10).length == 1;
+        assert eventStore.rebuildSearchIndex() == 0;
+    }
+
+    @Test
+    void TestBulkModeration() throws SQLException, DeletedException, Maybe.NothingException {
+        // Spam from an hour ago and now, a join event and a message by someone else
+        final java.time.Instant now = java.time.Instant.now();
+        final java.time.Instant hourAgo = now.minusSeconds(3600);
+        final List<Stored<Channel.Event>> events = connectionManager.inTransaction(() -> {
+            List<Stored<Channel.Event>> list = List.singleton(eventStore.save(
+                Channel.Event.createJoinEvent(hourAgo.minusSeconds(1), "spammer")));
+            for (int i = 0; i < 5; i++) {
+                list = List.cons(eventStore.save(
+                    Channel.Event.createMessageEvent(hourAgo.plusMillis(i), "spammer", "Spam " + i)), list);
+                list = List.cons(eventStore.save(
+                    Channel.Event.createMessageEvent(now.plusMillis(i), "spammer", "Spam " + i)), list);
+            }
+            return List.cons(eventStore.save(
+                Channel.Event.createMessageEvent(now, "Alice", "Spam is annoying")), list);
+        });
+        final Stored<Channel> channel = channelStore.save(new Channel("Chat", events));
+        final Stored<Channel> other = channelStore.save(new Channel("Other", List.singleton(eventStore.save(
+            Channel.Event.createMessageEvent(now, "spammer", "Spam elsewhere")))));
+        final Stored<Account> alice = accountStore.save(Account.create(userStore.save(User.create("Alice")), "password")
+            .joinChannel("chat", channel).joinChannel("other", other));
+        assert channelStore.search(alice.identity, "spam", 0, 20).length == 12;
+
+        // Only the newest messages, with one new version
+        final Pair<Integer,Stored<Channel>> recent = channelStore.deleteMessagesBy(
+            channel.identity, "spammer", Maybe.just(now.minusSeconds(60)), Maybe.nothing());
+        assert recent.first == 5;
+        assert recent.second.version == channel.version + 1;
+        assert recent.second.value.events.length == 7;
+
+        // Then the rest, leaving the join event and other senders and channels
+        final Pair<Integer,Stored<Channel>> rest = channelStore.deleteMessagesBy(
+            channel.identity, "spammer", Maybe.nothing(), Maybe.nothing());
+        assert rest.first == 5;
+        assert rest.second.version == channel.version + 2;
+        assert rest.second.value.events.length == 2;
+        assert channelStore.getSummaries(java.util.Collections.singleton(channel.identity))
+            .get(channel.identity).events == 2;
+        assert channelStore.search(alice.identity, "spam", 0, 20).length == 2;
+        assert channelStore.get(other.identity).value.events.length == 1;
+
+        // Nothing to delete leaves the channel as it is
+        final Pair<Integer,Stored<Channel>> none = channelStore.deleteMessagesBy(
+            channel.identity, "spammer", Maybe.nothing(), Maybe.just(now));
+        assert none.first == 0 && none.second.version == rest.second.version;
+    }
+
+    @Test
+    void TestCanModify() throws SQLException, DeletedException, Maybe.NothingException {
+        final Stored<Account> alice = accountStore.save(Account.create(userStore.save(User.create("Alice")), "password"));
+        final Stored<Account> bob = accountStore.save(Account.create(userStore.save(User.create("Bob")), "password"));
+        final Stored<Account> carol = accountStore.save(Account.create(userStore.save(User.create("Carol")), "password"));
+        final Stored<Channel.Event> message = eventStore.save(Channel.Event.createMessageEvent(
+            java.time.Instant.now(), alice.value.user.identity.toString(), "Hello"));
+        final Stored<Channel.Event> join = eventStore.save(Channel.Event.createJoinEvent(
+            java.time.Instant.now(), alice.value.user.identity.toString()));
+        final Stored<Channel> chat = channelStore.save(new Channel("Chat", List.cons(message, List.singleton(join))));
+        final Stored<Channel> other = channelStore.save(new Channel("Other", List.empty()));
+        accountStore.setUserAccess(alice, chat, "participant");
+        accountStore.setUserAccess(bob, chat, "moderator");
+        accountStore.setUserAccess(carol, chat, "participant");
+        accountStore.setUserAccess(carol, other, "owner");
+
+        // One statement, without loading the account
+        final StatementCache cache = connectionManager.getStatementCache();
+        final long statements = cache.getHits() + cache.getMisses();
+        assert inchat.canModify(alice, chat, message.identity);
+        assert cache.getHits() + cache.getMisses() == statements + 1;
+
+        // Senders may change their messages, and moderators any event
+        // of their channels, but not of other channels
+        assert !inchat.canModify(alice, chat, join.identity);
+        assert inchat.canModify(bob, chat, message.identity);
+        assert inchat.canModify(bob, chat, join.identity);
+        assert !inchat.canModify(carol, chat, message.identity);
+        assert !inchat.canModify(alice, chat, UUID.randomUUID());
+
+        // Nor may events be changed through another channel
+        accountStore.setUserAccess(alice, other, "owner");
+        assert !inchat.canModify(alice, other, message.identity);
+        assert !inchat.canModify(carol, other, join.identity);
+    }
+
+    @Test
+    void TestBulkJoin() throws SQLException, DeletedException, Maybe.NothingException {
+        final Stored<Account> owner = accountStore.save(Account.create(userStore.save(User.create("Owner")), "password"));
+        final Stored<Channel> channel = inchat.createChannel(owner, "Team").get();
+        final int size = 100;
+        final java.util.List<String> names = new java.util.ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            accountStore.save(Account.create(userStore.save(User.create("Member" + i)), "password"));
+            names.add("Member" + i);
+        }
+        // The owner is a member already, and nobody is called Nobody
+        names.add("Owner");
+        names.add("Nobody");
+
+        final StatementCache cache = connectionManager.getStatementCache();
+        final long statements = cache.getHits() + cache.getMisses();
+        final Stored<Channel> joined = inchat.joinChannel(channel.identity, names).get();
+        assert cache.getHits() + cache.getMisses() - statements < 30;
+
+        // One new version, with a join event for each new member
+        assert joined.version == channel.version + 1;
+        assert joined.value.events.length == channel.value.events.length + size;
+        assert joined.value.events.head().get().value.type == Channel.Event.Type.join;
+        assert inchat.getUserName(joined.value.events.head().get().value.sender).equals("Member" + (size - 1));
+        assert channelStore.getSummaries(java.util.Collections.singleton(channel.identity))
+            .get(channel.identity).events == size + 1;
+
+        final Stored<Account> member = accountStore.lookup("Member7");
+        assert member.value.channels.head().get().second.identity.equals(channel.identity);
+        assert accountStore.getUserAccess(member, channel.identity).equals("participant");
+        assert accountStore.getUserAccess(owner, channel.identity).equals("owner");
+
+        // Joining again changes nothing
+        assert inchat.joinChannel(channel.identity, names).get().version == joined.version;
+    }
+
+    @Test
+    void TestBatchPost() throws SQLException, DeletedException, UpdatedException, Maybe.NothingException {
+        final Stored<Account> bot = accountStore.save(Account.create(userStore.save(User.create("Bot")), "password"));
+        final Stored<Channel> alerts = inchat.createChannel(bot, "Alerts").get();
+        final Stored<Channel> builds = inchat.createChannel(bot, "Builds").get();
+
+        // Messages for both channels, interleaved
+        final java.util.List<Pair<Stored<Channel>,String>> batch = new java.util.ArrayList<Pair<Stored<Channel>,String>>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(Pair.pair(i % 3 == 0 ? builds : alerts, "Message " + i));
+        }
+        final java.util.Map<UUID,Stored<Channel>> posted = inchat.postMessages(bot, batch).get();
+
+        // One new version each, with the messages in order and consecutive sequence numbers
+        final Stored<Channel> newAlerts = posted.get(alerts.identity);
+        final Stored<Channel> newBuilds = posted.get(builds.identity);
+        assert newAlerts.version == alerts.version + 1;
+        assert newBuilds.version == builds.version + 1;
+        assert newAlerts.value.events.length == alerts.value.events.length + 6;
+        assert newAlerts.value.lastSequenceNumber() == alerts.value.lastSequenceNumber() + 6;
+        assert newBuilds.value.lastSequenceNumber() == builds.value.lastSequenceNumber() + 4;
+        assert newBuilds.value.events.head().get().value.message.equals("Message 9");
+        assert newAlerts.value.events.head().get().value.message.equals("Message 8");
+        assert channelStore.get(builds.identity).value.events.map(e -> e.identity)
+            .equals(newBuilds.value.events.map(e -> e.identity));
+        assert newAlerts.value.events.head().get().value.sender.equals(bot.value.user.identity.toString());
+
+        // A deleted channel leaves every channel as it was
+        channelStore.delete(channelStore.get(builds.identity));
+        assert inchat.postMessages(bot, batch).isNothing();
+        assert channelStore.get(alerts.identity).version == newAlerts.version;
+        final ResultSet count = connection.createStatement().executeQuery("SELECT count(*) FROM Event WHERE type = 0");
+        assert count.next() && count.getInt(1) == 10;
+    }
+}